@@ -0,0 +1,87 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Static methods for creating and populating the indexes used by the benchmarks.
+ */
+class BenchmarkIndexes {
+
+	/**
+	 * Create a temporary directory for an index and its store.
+	 * @return the directory.
+	 */
+	static File createDir() throws IOException {
+		return Files.createTempDirectory("ctp-bench-").toFile();
+	}
+
+	/**
+	 * Open an index in a directory.
+	 * @param backend the backend (jdbm or log).
+	 * @param dir the directory, which receives the index and store subdirectories.
+	 * @param commitBatchSize the maximum number of instances per commit.
+	 * @return the index.
+	 */
+	static StoreIndex open(String backend, File dir, int commitBatchSize) throws Exception {
+		File indexDir = new File(dir, "index");
+		File storeDir = new File(dir, "store");
+		indexDir.mkdirs();
+		storeDir.mkdirs();
+		if (backend.equals("log")) return new LogIndex(indexDir, storeDir, commitBatchSize, 1000, new Metrics());
+		return new BufferIndex(indexDir, storeDir, commitBatchSize, 1000, new Metrics());
+	}
+
+	/**
+	 * Add instances to an index without creating their files, and commit.
+	 * Patient p has PatientID "PT" + p, and instance i of study s of that
+	 * patient has the UID returned by getUID(p, s, i).
+	 * @param index the index.
+	 * @param patients the number of patients.
+	 * @param studies the number of studies per patient.
+	 * @param instances the number of instances per study.
+	 */
+	static void populate(StoreIndex index, int patients, int studies, int instances) throws IOException {
+		Tracker tracker = index.getTracker();
+		for (int p=0; p<patients; p++) {
+			for (int s=0; s<studies; s++) {
+				String studyUID = "1.2.826.0.1.3680043.2." + p + "." + s;
+				for (int i=0; i<instances; i++) {
+					long id = index.allocate();
+					index.addInstance("PT" + p, studyUID, "20240101", "CT",
+									  getUID(p, s, i), new Instance(id, tracker.getFile(id), null));
+					index.release(id);
+				}
+			}
+		}
+		index.commit();
+	}
+
+	/**
+	 * Get the SOPInstanceUID of an instance added by populate().
+	 * @param p the patient number.
+	 * @param s the study number.
+	 * @param i the instance number.
+	 * @return the UID.
+	 */
+	static String getUID(int p, int s, int i) {
+		return "1.2.826.0.1.3680043.2.1143." + p + "." + s + "." + i;
+	}
+
+	/**
+	 * Delete a directory and its contents.
+	 * @param dir the directory.
+	 */
+	static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) delete(file);
+				else file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+}
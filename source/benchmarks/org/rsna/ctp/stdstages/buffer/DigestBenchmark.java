@@ -0,0 +1,80 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The throughput of computing the MD5 digest of a stored file with
+ * StoredFile.digest(), which the stage's getDigest() calls, for plain
+ * and compressed files. The score
+ * is the time per file; divide the file size by it for the throughput.
+ * <p>
+ * The files contain runs of random values, so that they compress
+ * roughly as well as typical pixel data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DigestBenchmark {
+
+	@Param({ "65536", "1048576", "16777216" })
+	public int size;
+
+	@Param({ "65536" })
+	public int bufferSize;
+
+	File dir;
+	File plain;
+	File compressed;
+
+	@Setup
+	public void setup() throws Exception {
+		dir = BenchmarkIndexes.createDir();
+		plain = new File(dir, "plain.dcm");
+		compressed = new File(dir, "compressed.dcm");
+		byte[] data = new byte[size];
+		Random random = new Random(0);
+		for (int i=0; i<size; i+=4) {
+			byte b = (byte)random.nextInt(64);
+			for (int k=i; (k<i+4) && (k<size); k++) data[k] = b;
+		}
+		FileOutputStream out = new FileOutputStream(plain);
+		try { out.write(data); }
+		finally { out.close(); }
+		StoredFile.compress(plain, compressed, 1, MessageDigest.getInstance("MD5"), new byte[bufferSize], false);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkIndexes.delete(dir);
+	}
+
+	@Benchmark
+	public byte[] plainFile() throws Exception {
+		return StoredFile.digest(plain, bufferSize);
+	}
+
+	@Benchmark
+	public byte[] compressedFile() throws Exception {
+		return StoredFile.digest(compressed, bufferSize);
+	}
+
+}
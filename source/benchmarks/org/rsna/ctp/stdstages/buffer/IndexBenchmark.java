@@ -0,0 +1,93 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Insert and lookup rates of the index backends, and the
+ * rate at which the Tracker allocates store slots.
+ * <p>
+ * The index is populated with the given number of instances in
+ * studies of 100 instances before the measurements. Inserts add new
+ * instances to the existing patients in commit batches of 100, without
+ * creating their files. Lookups fetch existing instances by UID.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBenchmark {
+
+	static final int instancesPerStudy = 100;
+
+	@Param({ "jdbm", "log" })
+	public String backend;
+
+	@Param({ "10000", "100000" })
+	public int instances;
+
+	File dir;
+	StoreIndex index;
+	Tracker tracker;
+	String[] uids;
+	int nPatients;
+	int next = 0;
+	int lookup = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		dir = BenchmarkIndexes.createDir();
+		index = BenchmarkIndexes.open(backend, dir, 100);
+		nPatients = Math.max(instances / instancesPerStudy, 1);
+		BenchmarkIndexes.populate(index, nPatients, 1, instancesPerStudy);
+		uids = new String[nPatients * instancesPerStudy];
+		int k = 0;
+		for (int p=0; p<nPatients; p++) {
+			for (int i=0; i<instancesPerStudy; i++) uids[k++] = BenchmarkIndexes.getUID(p, 0, i);
+		}
+		tracker = new Tracker(new File(dir, "tracker"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		index.close();
+		BenchmarkIndexes.delete(dir);
+	}
+
+	@Benchmark
+	public void insert() throws Exception {
+		int n = next++;
+		int p = n % nPatients;
+		long id = index.allocate();
+		index.addInstance("PT" + p, "1.2.826.0.1.3680043.2." + p + ".0", "20240101", "CT",
+						  BenchmarkIndexes.getUID(p, 0, instancesPerStudy + n / nPatients),
+						  new Instance(id, tracker.getFile(id), null));
+		index.release(id);
+	}
+
+	@Benchmark
+	public Instance lookup() {
+		lookup = (lookup + 7919) % uids.length;
+		return index.getInstance(uids[lookup]);
+	}
+
+	@Benchmark
+	public File trackerNextFile() {
+		return tracker.getNextFile();
+	}
+
+}
@@ -0,0 +1,90 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of listing the patients in the buffer as a function of the
+ * number of patients, for each index backend.
+ * <p>
+ * The page benchmarks fetch the first and a middle page of 100 patients,
+ * as the servlet does. The full-list benchmark fetches every patient in
+ * PatientID order, one lookup per patient, as the stage's getPatients()
+ * does for the status page. The totals benchmark scans the status partition.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingBenchmark {
+
+	@Param({ "jdbm", "log" })
+	public String backend;
+
+	@Param({ "1000", "10000", "50000" })
+	public int patients;
+
+	File dir;
+	StoreIndex index;
+	String middle;
+
+	@Setup
+	public void setup() throws Exception {
+		dir = BenchmarkIndexes.createDir();
+		index = BenchmarkIndexes.open(backend, dir, 1000);
+		BenchmarkIndexes.populate(index, patients, 2, 2);
+		List<String> ptids = index.getPatientIDs(StatusIndex.NONE);
+		middle = ptids.get(ptids.size() / 2);
+	}
+
+	@TearDown
+	public void tearDown() {
+		index.close();
+		BenchmarkIndexes.delete(dir);
+	}
+
+	@Benchmark
+	public PatientPage firstPage() {
+		PatientQuery query = new PatientQuery();
+		return index.getPatients(query, 1000);
+	}
+
+	@Benchmark
+	public PatientPage middlePage() {
+		PatientQuery query = new PatientQuery();
+		query.cursor = middle;
+		return index.getPatients(query, 1000);
+	}
+
+	@Benchmark
+	public Patient[] listAll() {
+		LinkedList<Patient> list = new LinkedList<Patient>();
+		for (String ptid : index.getPatientIDs(StatusIndex.NONE)) {
+			Patient p = index.getPatient(ptid);
+			if (p != null) list.add(p);
+		}
+		return list.toArray( new Patient[list.size()] );
+	}
+
+	@Benchmark
+	public int[] totals() {
+		return index.getTotals(StatusIndex.NONE);
+	}
+
+}
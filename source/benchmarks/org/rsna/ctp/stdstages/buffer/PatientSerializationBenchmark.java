@@ -0,0 +1,110 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of serializing the Patient records stored in the JDBM index,
+ * as a function of the number of instances per study.
+ * <p>
+ * The header benchmarks serialize the records written by BufferIndex
+ * (the Patient header and a Study header), whose size does not depend on
+ * the number of instances. The legacy benchmarks serialize a Patient in
+ * the format of older indexes, in which each Study held its instance UIDs
+ * in a HashSet, for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatientSerializationBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int instancesPerStudy;
+
+	Patient header;
+	Study studyHeader;
+	Patient legacy;
+	byte[] headerBytes;
+	byte[] legacyBytes;
+
+	@Setup
+	public void setup() throws Exception {
+		Patient patient = new Patient("PT0");
+		patient.setLastModifiedTime();
+		Study study = new Study("1.2.826.0.1.3680043.2.0.0", "20240101", "CT");
+		study.setID(1);
+		for (int i=0; i<instancesPerStudy; i++) study.addInstanceUID(BenchmarkIndexes.getUID(0, 0, i));
+		patient.addStudy(study.getStudyInstanceUID(), study);
+		header = patient.getHeader();
+		studyHeader = study.getHeader();
+
+		legacy = new Patient("PT0");
+		legacy.studyIDs = null;
+		Study legacyStudy = new Study(study.getStudyInstanceUID(), "20240101", "CT");
+		legacyStudy.instances = null;
+		legacyStudy.instanceTable = new HashSet<String>();
+		for (String uid : study.getInstanceUIDs()) legacyStudy.instanceTable.add(uid);
+		legacy.addStudy(legacyStudy.getStudyInstanceUID(), legacyStudy);
+
+		headerBytes = serialize(header);
+		legacyBytes = serialize(legacy);
+	}
+
+	static byte[] serialize(Object object) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	static Object deserialize(byte[] bytes) throws Exception {
+		ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream(bytes) );
+		try { return in.readObject(); }
+		finally { in.close(); }
+	}
+
+	@Benchmark
+	public byte[] serializeHeader() throws Exception {
+		return serialize(header);
+	}
+
+	@Benchmark
+	public byte[] serializeStudyHeader() throws Exception {
+		return serialize(studyHeader);
+	}
+
+	@Benchmark
+	public Object deserializeHeader() throws Exception {
+		return deserialize(headerBytes);
+	}
+
+	@Benchmark
+	public byte[] serializeLegacy() throws Exception {
+		return serialize(legacy);
+	}
+
+	@Benchmark
+	public Object deserializeLegacy() throws Exception {
+		return deserialize(legacyBytes);
+	}
+
+}
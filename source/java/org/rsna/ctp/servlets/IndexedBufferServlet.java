@@ -8,7 +8,16 @@
 package org.rsna.ctp.servlets;
 
 import java.io.File;
+import java.io.StringWriter;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.pipeline.PipelineStage;
@@ -30,6 +39,16 @@ import org.w3c.dom.*;
 public class IndexedBufferServlet extends CTPServlet {
 
 	static final Logger logger = Logger.getLogger(IndexedBufferServlet.class);
+	
+	//A servlet is instantiated for each request, so the
+	//compiled stylesheet and the rendered pages are static.
+	static Templates templates = null;
+	static final int maxCachedPages = 64;
+	static final Map<String,CachedPage> cache = new LinkedHashMap<String,CachedPage>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,CachedPage> eldest) {
+			return size() > maxCachedPages;
+		}
+	};
 
 	/**
 	 * Construct an IndexedBufferServlet.
@@ -65,12 +84,84 @@ public class IndexedBufferServlet extends CTPServlet {
 		}
 		IndexedDicomBuffer idb = (IndexedDicomBuffer)stage;
 		
-		//If this is an export, do it now
+		//If this is a metrics request, return the metrics and stop
+		if ("json".equals(req.getParameter("metrics"))) {
+			res.write( idb.getMetricsJSON() );
+			res.setContentType("json");
+			res.disableCaching();
+			res.send();
+			return;
+		}
+		
+		//If this is a listing request, return the requested page and stop.
+		//The parameters are:
+		//  status: none, pending, or failed (default: none)
+		//  prefix: the PatientID prefix (default: all PatientIDs)
+		//  from, to: the range of last modification times, in ms
+		//  order: asc or desc (PatientID order; default: asc)
+		//  cursor: the cursor returned with the previous page
+		//  limit: the maximum number of patients on the page
+		if ("json".equals(req.getParameter("list"))) {
+			PatientQuery query = new PatientQuery();
+			query.set = PatientQuery.getSet(req.getParameter("status"));
+			query.prefix = req.getParameter("prefix", "");
+			query.cursor = req.getParameter("cursor");
+			query.descending = "desc".equals(req.getParameter("order"));
+			query.from = StringUtil.getLong(req.getParameter("from"), 0);
+			query.to = StringUtil.getLong(req.getParameter("to"), Long.MAX_VALUE);
+			query.limit = StringUtil.getInt(req.getParameter("limit"), 100);
+			String key = context + "|list|" + query.set + "|" + query.prefix + "|" + query.cursor + "|"
+							+ query.descending + "|" + query.from + "|" + query.to + "|" + query.limit;
+			long version = idb.getVersion();
+			CachedPage page = getCachedPage(key, version);
+			if (page == null) {
+				StringBuilder sb = new StringBuilder();
+				idb.getPatients(query).appendTo(sb);
+				page = putCachedPage(key, version, sb.toString(), "json");
+			}
+			send(req, res, page);
+			return;
+		}
+		
+		//If this is an export, submit the job and return its status
 		String exportParam = req.getParameter("export");
 		String comment = req.getParameter("comment");
 		if ((exportParam != null) && (comment != null)) {
 			String[] ptids = exportParam.split("[|]");
-			idb.export(ptids, comment);
+			sendJob(res, idb.export(ptids, comment));
+			return;
+		}
+		
+		//If this is a job status request, return the status and stop
+		String jobParam = req.getParameter("job");
+		if (jobParam != null) {
+			sendJob(res, idb.getJob(StringUtil.getLong(jobParam, -1)));
+			return;
+		}
+		
+		//If this is a compaction request, start the compaction
+		//if requested, return its progress, and stop
+		String compactParam = req.getParameter("compact");
+		if (compactParam != null) {
+			if (compactParam.equals("start")) idb.compactIndex();
+			res.write( idb.getCompactionJSON() );
+			res.setContentType("json");
+			res.disableCaching();
+			res.send();
+			return;
+		}
+		
+		//If this is an index check request, start the check if
+		//requested (check or repair), return its progress, and stop
+		String rebuildParam = req.getParameter("rebuild");
+		if (rebuildParam != null) {
+			if (rebuildParam.equals("check")) idb.rebuildIndex(false);
+			else if (rebuildParam.equals("repair")) idb.rebuildIndex(true);
+			res.write( idb.getRebuildJSON() );
+			res.setContentType("json");
+			res.disableCaching();
+			res.send();
+			return;
 		}
 		
 		//If this is a resetFailures, do it now
@@ -78,32 +169,96 @@ public class IndexedBufferServlet extends CTPServlet {
 			idb.reset();
 		}
 		
-		//Now return the index of patients and studies
-		Patient[] pts = idb.getPatients();
+		//Now return the page. The patients are loaded
+		//by the page from the listing request.
 		try {
-			Document doc = XmlUtil.getDocument();
-			Element root = doc.createElement("Patients");
-			doc.appendChild(root);
-			for (Patient p : pts) {
-				p.appendTo(root);
+			String key = context + "|page|" + suppress;
+			long version = idb.getVersion();
+			CachedPage page = getCachedPage(key, version);
+			if (page == null) {
+				Document doc = XmlUtil.getDocument();
+				Element root = doc.createElement("Patients");
+				doc.appendChild(root);
+	
+				Transformer transformer = getTemplates().newTransformer();
+				transformer.setParameter("context", context);
+				transformer.setParameter("name", idb.getName());
+				transformer.setParameter("suppress", suppress);
+				StringWriter sw = new StringWriter();
+				transformer.transform( new DOMSource(doc), new StreamResult(sw) );
+				page = putCachedPage(key, version, sw.toString(), "html");
 			}
-
-			Document xsl = XmlUtil.getDocument( FileUtil.getStream( "/IndexedBufferServlet.xsl" ) );
-			Object[] params = {
-				"context", context,
-				"name", idb.getName(),
-				"suppress", suppress
-			};
-			res.write( XmlUtil.getTransformedText( doc, xsl, params ) );
-			res.setContentType("html");
-			res.disableCaching();
+			send(req, res, page);
 		}
 		catch (Exception ex) {
 			logger.warn("Unable to create XML document", ex);
 			res.setResponseCode(res.servererror);
+			res.send();
+		}
+	}
+	
+	private void sendJob(HttpResponse res, ExportJob job) {
+		if (job != null) {
+			StringBuilder sb = new StringBuilder();
+			job.appendTo(sb);
+			res.write( sb.toString() );
+			res.setContentType("json");
+		}
+		else res.setResponseCode(res.notfound);
+		res.disableCaching();
+		res.send();
+	}
+	
+	private static synchronized Templates getTemplates() throws Exception {
+		if (templates == null) {
+			templates = TransformerFactory.newInstance().newTemplates(
+							new StreamSource( FileUtil.getStream( "/IndexedBufferServlet.xsl" ) ) );
+		}
+		return templates;
+	}
+	
+	//Get a cached page if it was rendered at the current version.
+	private static CachedPage getCachedPage(String key, long version) {
+		synchronized (cache) {
+			CachedPage page = cache.get(key);
+			return ((page != null) && (page.version == version)) ? page : null;
+		}
+	}
+	
+	private static CachedPage putCachedPage(String key, long version, String text, String contentType) {
+		CachedPage page = new CachedPage(version, "\"" + version + "-" + Integer.toHexString(key.hashCode()) + "\"", text, contentType);
+		synchronized (cache) { cache.put(key, page); }
+		return page;
+	}
+	
+	//Send a page, or a 304 if the client's copy is current.
+	//Clients must revalidate on each use.
+	private void send(HttpRequest req, HttpResponse res, CachedPage page) {
+		res.setHeader("ETag", page.etag);
+		res.setHeader("Cache-Control", "no-cache");
+		if (page.etag.equals(req.getHeader("If-None-Match"))) {
+			res.setResponseCode(res.notmodified);
+		}
+		else {
+			res.write(page.text);
+			res.setContentType(page.contentType);
 		}
 		res.send();
 	}
+	
+	static class CachedPage {
+		final long version;
+		final String etag;
+		final String text;
+		final String contentType;
+		
+		CachedPage(long version, String etag, String text, String contentType) {
+			this.version = version;
+			this.etag = etag;
+			this.text = text;
+			this.contentType = contentType;
+		}
+	}
 
 }
 
@@ -11,23 +11,38 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
-import jdbm.RecordManager;
-import jdbm.htree.HTree;
-import jdbm.helper.FastIterator;
-import jdbm.helper.Tuple;
-import jdbm.helper.TupleBrowser;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.DicomObject;
@@ -44,7 +59,6 @@ import org.rsna.server.HttpServer;
 import org.rsna.server.ServletSelector;
 import org.rsna.util.FileUtil;
 import org.rsna.util.HttpUtil;
-import org.rsna.util.JdbmUtil;
 import org.rsna.util.StringUtil;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -53,12 +67,48 @@ import java.security.MessageDigest;
 
 /**
  * A class to store objects in a file system.
+ * <p>
+ * The stage does not synchronize on itself. Operations on one patient
+ * are serialized by striped locks keyed by PatientID, and all access to
+ * the index goes through a StoreIndex, whose methods are short
+ * synchronized sections. The indexBackend attribute selects the JDBM
+ * database (jdbm, the default) or the in-memory index with a
+ * memory-mapped log (log). Stores for different patients, and stores
+ * alongside exports of other patients, therefore proceed in parallel.
+ * <p>
+ * Index updates made by store() can be committed in groups. The
+ * commitBatchSize attribute sets the maximum number of instances
+ * per commit, and the commitInterval attribute sets the maximum
+ * time (in milliseconds) that an update can remain uncommitted.
+ * The default batch size (1) commits every instance as it is stored.
+ * <p>
+ * Durability: a stored file is always written before its index
+ * entry, and the Tracker is committed with every batch, so a crash
+ * can lose at most the index entries of the last uncommitted batch.
+ * Those files occupy the store slots at or after the committed Tracker
+ * position (the lowest slot still being written), and they are
+ * re-indexed from the store directory when the stage is next constructed.
+ * The fsync attribute determines whether stored files are also forced
+ * to the disk: never (none), before each file is indexed (file), or
+ * before each batch is committed (batch).
  */
 public class IndexedDicomBuffer extends AbstractPipelineStage implements StorageService {
 
 	static final Logger logger = Logger.getLogger(IndexedDicomBuffer.class);
 
 	static final int oneSecond = 1000;
+	static final int defaultBufferSize = 64 * 1024;
+	static final int minBufferSize = 4 * 1024;
+	int storeBufferSize = defaultBufferSize;
+	boolean linkFiles = false;
+	volatile boolean linksSupported = true;
+	boolean syncFiles = false;
+	boolean compress = false;
+	int compressionLevel = 1;
+	boolean sendCompressed = false;
+	final AtomicLong originalBytes = new AtomicLong(0);
+	final AtomicLong compressedBytes = new AtomicLong(0);
+	int exportBufferSize = defaultBufferSize;
 	final int connectionTimeout = 20 * oneSecond;
 	final int readTimeout = 120 * oneSecond;
 
@@ -67,17 +117,41 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 	boolean requestImportEventID = true;
 	volatile File lastFileStored = null;
 	volatile long lastTime = 0;
-	Tracker tracker = null;
-    RecordManager recman = null;
-    HTree patientIndex = null;
-    HTree uidIndex = null;
-    ExportThread exporter;
-    
-    volatile int totalCount = 0;
-    volatile int acceptedCount = 0;
-    
-    File indexDir;
-    File storeDir;
+	StoreIndex index = null;
+	boolean logIndex = false;
+	final PatientLocks locks = new PatientLocks(256);
+	ExportThread exporter;
+	int exportThreads = 1;
+	JobThread jobber = null;
+	boolean deleteExportedFiles = false;
+	RetryThread retrier = null;
+	ConcurrencyLimiter limiter = null;
+	ExportQueue exportQueue = null;
+	long retryInitialDelay = 60 * oneSecond;
+	long retryMaxDelay = 3600 * oneSecond;
+	int retryLimit = 0;
+	
+	CommitThread committer = null;
+	IndexTask compactor = null;
+	IndexRebuilder rebuilder = null;
+	int rebuildThreads = 1;
+	
+	final AtomicInteger totalCount = new AtomicInteger(0);
+	final AtomicInteger acceptedCount = new AtomicInteger(0);
+	final AtomicLong duplicateCount = new AtomicLong(0);
+	final AtomicLong duplicateBytes = new AtomicLong(0);
+	long tombstoneRetention = 0;
+	final AtomicLong version = new AtomicLong(0);
+	final Runnable indexChanged = new Runnable() {
+		public void run() { version.incrementAndGet(); }
+	};
+	final Metrics metrics = new Metrics();
+	
+	int commitBatchSize = 1;
+	long commitInterval = 1000;
+	
+	File indexDir;
+	File storeDir;
 
 	/**
 	 * Construct an IndexedBufferService.
@@ -93,28 +167,98 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 		storeDir = (storePath.equals("")) ? new File(root, "store") : getDirectory(storePath);
 		storeDir.mkdirs();
 		
-		File indexFile = new File(indexDir, "__index");
-		recman = JdbmUtil.getRecordManager( indexFile.getPath() );
-		patientIndex = JdbmUtil.getHTree( recman, "patientIndex" );
-		uidIndex = JdbmUtil.getHTree( recman, "uidIndex" );
-		if (uidIndex == null) logger.warn("Unable to load the index.");
-		else {
-			try { 
-				tracker = (Tracker)uidIndex.get("__tracker");
-				if (tracker == null) {
-					tracker = new Tracker(storeDir);
-					uidIndex.put("__tracker", tracker);
-					commit();
-				}
+		//Get the group commit parameters
+		commitBatchSize = Math.max( StringUtil.getInt(element.getAttribute("commitBatchSize").trim(), 1), 1 );
+		commitInterval = Math.max( StringUtil.getLong(element.getAttribute("commitInterval").trim(), 1000), 1 );
+		
+		//Get the recovery parameters. The index is rebuilt from the
+		//store directory if it cannot be loaded (rebuildIndex="auto"),
+		//or checked and repaired at every startup (rebuildIndex="yes").
+		String rebuild = element.getAttribute("rebuildIndex").trim();
+		int nProcessors = Runtime.getRuntime().availableProcessors();
+		rebuildThreads = Math.max( StringUtil.getInt(element.getAttribute("rebuildThreads").trim(), 2*nProcessors), 1 );
+		
+		//Get the index backend. A new log index is populated from the
+		//store directory unless rebuildIndex="no". The parallel rebuild
+		//indexes every file, so the sequential recovery is skipped.
+		logIndex = element.getAttribute("indexBackend").trim().equals("log");
+		boolean populate = logIndex && !LogIndex.exists(indexDir) && !rebuild.equals("no");
+		
+		try {
+			index = openIndex();
+			if (populate) rebuild();
+			else {
+				recover();
+				if (rebuild.equals("yes")) rebuild();
 			}
-			catch (Exception ex) {
-				logger.warn("Unable to load the Tracker.", ex);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to load the index.", ex);
+			if (!rebuild.equals("no")) {
+				try {
+					if (logIndex) LogIndex.discard(indexDir);
+					else BufferIndex.discard(indexDir);
+					index = openIndex();
+					rebuild();
+				}
+				catch (Exception failed) {
+					logger.warn("Unable to rebuild the index.", failed);
+					index = null;
+				}
 			}
 		}
+		
 		//Get the destination url
 		url = element.getAttribute("url").trim();
 		apikey = element.getAttribute("apikey").trim();
 		requestImportEventID = !element.getAttribute("requestImportEventID").equals("no");
+		exportThreads = Math.max( StringUtil.getInt(element.getAttribute("exportThreads").trim(), 1), 1 );
+		
+		//Determine whether files are deleted as soon as they are exported,
+		//rather than when the export of the whole patient is complete.
+		deleteExportedFiles = element.getAttribute("deleteExportedFiles").trim().equals("yes");
+		
+		//Create the queue of patients waiting for export
+		exportQueue = new ExportQueue(element.getAttribute("exportOrder").trim());
+		
+		//Create the adaptive limit on concurrent uploads. The limit
+		//can rise to the number of export threads.
+		long latencyTarget = Math.max( StringUtil.getLong(element.getAttribute("exportLatencyTarget").trim(), 0), 0 );
+		limiter = new ConcurrencyLimiter(1, exportThreads, latencyTarget);
+		
+		//Get the retry schedule for exports that fail with Status.RETRY
+		retryInitialDelay = Math.max( StringUtil.getLong(element.getAttribute("retryInitialDelay").trim(), retryInitialDelay), oneSecond );
+		retryMaxDelay = Math.max( StringUtil.getLong(element.getAttribute("retryMaxDelay").trim(), retryMaxDelay), retryInitialDelay );
+		retryLimit = Math.max( StringUtil.getInt(element.getAttribute("retryLimit").trim(), 0), 0 );
+		
+		//Get the number of days for which the digests of exported
+		//instances are kept after the instances are removed from the
+		//index, so that re-sends of the instances are not exported again.
+		int tombstoneDays = Math.max( StringUtil.getInt(element.getAttribute("tombstoneDays").trim(), 0), 0 );
+		tombstoneRetention = tombstoneDays * 24 * 60 * 60 * 1000L;
+		if (index != null) index.setKeepTombstones(tombstoneDays > 0);
+		
+		//Get the buffer sizes for storing and exporting files
+		storeBufferSize = Math.max( StringUtil.getInt(element.getAttribute("storeBufferSize").trim(), defaultBufferSize), minBufferSize );
+		exportBufferSize = Math.max( StringUtil.getInt(element.getAttribute("exportBufferSize").trim(), defaultBufferSize), minBufferSize );
+		
+		//Get the method of placing files in the store. With "link", the
+		//received file is hard-linked into the store, or transferred
+		//with FileChannel.transferTo if it is on another file system.
+		linkFiles = element.getAttribute("storeMethod").trim().equals("link");
+		
+		//Get the fsync policy: none, file (force each file before it is
+		//indexed), or batch (force the files of a batch before it is committed).
+		String fsync = element.getAttribute("fsync").trim();
+		syncFiles = fsync.equals("file");
+		if ((index != null) && fsync.equals("batch")) index.setSyncOnCommit(true);
+		
+		//Get the compression parameters. Compressed files are exported
+		//either inflated or, if the destination accepts it, as they are
+		//stored, with Content-Encoding: deflate.
+		compress = element.getAttribute("compression").trim().equals("deflate");
+		compressionLevel = Math.min( Math.max( StringUtil.getInt(element.getAttribute("compressionLevel").trim(), 1), 1 ), 9 );
+		sendCompressed = element.getAttribute("exportEncoding").trim().equals("deflate");
 		
 		//Check that we have an id for use as the context or the servlet
 		if (id.equals("")) logger.error(name+": No id attribute was specified.");
@@ -135,6 +279,20 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 		//Start the export thread
 		exporter = new ExportThread();
 		exporter.start();
+		
+		//Start the thread that processes export jobs
+		jobber = new JobThread();
+		jobber.start();
+		
+		//Start the thread that requeues failed exports
+		retrier = new RetryThread();
+		retrier.start();
+		
+		//Start the commit thread if group commits are enabled
+		if (commitBatchSize > 1) {
+			committer = new CommitThread();
+			committer.start();
+		}
 	}
 
 	/**
@@ -142,12 +300,30 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 	 */
 	public synchronized void shutdown() {
 		try {
+			jobber.interrupt();
+			jobber.join();
+			retrier.interrupt();
+			retrier.join();
 			exporter.interrupt();
 			exporter.join();
-			if (recman != null) {
-				recman.commit();
-				recman.close();
+			if (committer != null) {
+				committer.interrupt();
+				committer.join();
+			}
+			//Abandon any index check in progress
+			IndexRebuilder r = rebuilder;
+			if (r != null) {
+				r.interrupt();
+				r.join();
+			}
+			//Abandon any compaction in progress
+			IndexTask c = compactor;
+			if (c != null) {
+				c.interrupt();
+				c.join();
 			}
+			//Flush the last batch and close the index
+			if (index != null) index.close();
 		}
 		catch (Exception failed) {
 			logger.warn("Unable to shut down.", failed);
@@ -155,116 +331,280 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 		super.shutdown();
 	}
 	
-	private void commit() {
-		try { recman.commit(); }
-		catch (Exception ignore) { logger.warn("Commit failed"); }
+	private StoreIndex openIndex() throws Exception {
+		if (logIndex) return new LogIndex(indexDir, storeDir, commitBatchSize, commitInterval, metrics);
+		return new BufferIndex(indexDir, storeDir, commitBatchSize, commitInterval, metrics);
 	}
 	
-	/**
-	 * Export an array of patients.
-	 * @param ptids the array of patientIDs to export.
-	 */
-	public synchronized void export(String[] ptids, String comment) {
-		for (String ptid : ptids) {
+	//Check and repair the index from the store directory
+	//before any objects are stored.
+	private void rebuild() {
+		logger.info(name+": rebuilding the index from "+storeDir);
+		rebuilder = new IndexRebuilder(index, locks, true, rebuildThreads, indexChanged);
+		rebuilder.check();
+	}
+	
+	//Re-index any files that were stored after the last commit
+	//but whose index entries were lost in a crash. Such files occupy
+	//the store slots from the committed Tracker position up to the
+	//persistent slot limit. Slots in that range may be empty because
+	//a store failed or its file was exported and deleted, and they may
+	//hold files that were indexed in a later commit by concurrent stores;
+	//those are skipped so that their entries (and their exported flags)
+	//are not replaced. An index created before the slot limit was
+	//recorded has no limit, so recovery stops after a run of empty slots.
+	private void recover() {
+		int nRecovered = 0;
+		int nMissing = 0;
+		Tracker tracker = index.getTracker();
+		long limit = index.getSlotLimit();
+		long fileID = index.getNextFileID();
+		while ((limit >= 0) ? (fileID < limit) : (nMissing < commitBatchSize + 1000)) {
+			long id = fileID++;
+			File file = tracker.getFile(id);
+			if (!file.exists()) {
+				nMissing++;
+				continue;
+			}
+			nMissing = 0;
+			index.skipTo(fileID);
 			try {
-				String submissionID = getImportEventID(comment);
-				Patient patient = (Patient)patientIndex.get(ptid);
-				patient.setComment(comment);
-				patient.setSubmissionID(submissionID);
-				patient.setStatus(Status.PENDING);
-				patientIndex.put(ptid, patient);
+				DicomObject dob = StoredFile.parse(file);
+				String uid = dob.getSOPInstanceUID();
+				Instance instance = index.getInstance(uid);
+				if ((instance != null) && (instance.getFileID() == id)) continue;
+				index.addInstance(
+					dob.getPatientID(),
+					dob.getStudyInstanceUID(),
+					dob.getStudyDate(),
+					dob.getModality(),
+					uid,
+					new Instance(id, file, getDigest(file)));
+				nRecovered++;
 			}
 			catch (Exception ex) {
-				logger.warn("Unable to serve export request for "+id);
+				logger.warn("Unable to recover "+file+"; the file has been skipped.");
 			}
 		}
-		commit();
+		if (nRecovered > 0) {
+			index.commit();
+			logger.info(name+": recovered "+nRecovered+" uncommitted instance"+((nRecovered!=1)?"s":""));
+		}
+	}
+	
+	/**
+	 * Submit a job to export an array of patients. The job is stored
+	 * in the index and processed by the job thread, so this method
+	 * returns without waiting for the import event IDs.
+	 * @param ptids the array of patientIDs to export.
+	 * @param comment the export comment.
+	 * @return the job, or null if the job could not be stored.
+	 */
+	public ExportJob export(String[] ptids, String comment) {
+		if (index == null) return null;
+		try {
+			ExportJob job = index.addJob(ptids, comment);
+			jobber.wakeUp();
+			return job;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to store export request for "+id, ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * Get an export job.
+	 * @param jobID the ID of the job.
+	 * @return the job, or null if the job does not exist.
+	 */
+	public ExportJob getJob(long jobID) {
+		return (index != null) ? index.getJob(jobID) : null;
+	}
+	
+	/**
+	 * Start an online compaction of the index.
+	 * @return true if the compaction was started; false if
+	 * a compaction is already in progress.
+	 */
+	public synchronized boolean compactIndex() {
+		if (index == null) return false;
+		IndexTask c = index.compact();
+		if (c == null) return false;
+		compactor = c;
+		return true;
+	}
+	
+	/**
+	 * Start a check of the index against the store directory.
+	 * @param repair true if files that are not in the index are to be added
+	 * and entries whose files are missing are to be removed; false if the
+	 * inconsistencies are only to be reported.
+	 * @return true if the check was started; false if a check is already in progress.
+	 */
+	public synchronized boolean rebuildIndex(boolean repair) {
+		if ((index == null) || ((rebuilder != null) && rebuilder.isAlive())) return false;
+		rebuilder = new IndexRebuilder(index, locks, repair, rebuildThreads, indexChanged);
+		rebuilder.start();
+		version.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Get the progress and findings of the current or last index check as a JSON object.
+	 * @return JSON text containing the counts of files, orphan files, and dangling
+	 * index entries, with examples of each, or an empty object if no check has been run.
+	 */
+	public String getRebuildJSON() {
+		IndexRebuilder r = rebuilder;
+		StringBuilder sb = new StringBuilder("{");
+		if (r != null) r.appendTo(sb);
+		sb.append("}");
+		return sb.toString();
+	}
+	
+	/**
+	 * Get the progress of the current or last index compaction as a JSON object.
+	 * @return JSON text containing the phase and progress of the compaction,
+	 * or an empty object if no compaction has been started.
+	 */
+	public String getCompactionJSON() {
+		IndexTask c = compactor;
+		StringBuilder sb = new StringBuilder("{");
+		if (c != null) c.appendTo(sb);
+		sb.append("}");
+		return sb.toString();
 	}
 	
 	/**
 	 * Get the File corresponding to a UID.
 	 * @param uid the UID of the object to find.
 	 * @return the File corresponding to the stored object with the requested UID,
-	 * or null if no object corresponding to the UID is stored.
+	 * or null if no object corresponding to the UID is stored. A file that is
+	 * stored compressed (compression="deflate") is not a DICOM file, so null is
+	 * also returned for it; use getInstance() and StoredFile.open() to read it.
 	 */
 	public File getFileForUID(String uid) {
-		try { return (File)uidIndex.get(uid); }
-		catch (Exception noFile) {
-			logger.info("Unable to find UID ("+uid+") in the uidIndex.");
-			return null;
-		}
+		Instance instance = getInstance(uid);
+		if (instance == null) return null;
+		File file = instance.getFile();
+		return StoredFile.isCompressed(file) ? null : file;
+	}
+	
+	/**
+	 * Get the Instance record corresponding to a UID.
+	 * @param uid the UID of the object to find.
+	 * @return the Instance containing the File and the MD5 digest of the stored object,
+	 * or null if no object corresponding to the UID is stored. For objects stored
+	 * before digests were recorded in the index, the digest is null.
+	 */
+	public Instance getInstance(String uid) {
+		return index.getInstance(uid);
 	}
 
 	/**
 	 * Store a DicomObject object.
 	 * If the storage attempt fails, quarantine the input object if a quarantine
 	 * was defined in the configuration, and return null to stop further processing.
+	 * Stores of objects for different patients proceed in parallel; stores for
+	 * the same patient are serialized by the patient's lock.
 	 * @param fileObject the object to store.
 	 * @return the original FileObject, or null if the object was a DiocomObject
 	 * and the storage attempt failed.
 	 */
-	public synchronized FileObject store(FileObject fileObject) {
+	public FileObject store(FileObject fileObject) {
 
 		//Count all the files
-		totalCount++;
+		totalCount.incrementAndGet();
 
 		//This StorageService is configured to accept only DicomObjects.
 		if (!(fileObject instanceof DicomObject)) return fileObject;
 		DicomObject dicomObject = (DicomObject)fileObject;
 
 		//Count the accepted files
-		acceptedCount++;
-
-		//The object is acceptable; get a place to store it.
-		//First, see if the object is already in the store;
-		File savedFile;
-		String uid = dicomObject.getSOPInstanceUID();
-		String path = null;
-		try { path = (String)uidIndex.get(uid); }
-		catch (Exception notThere) { }
-
-		if (path != null) {
-			//This file is already in the store
-			savedFile = new File(path);
-		}
-		else {
-			//This is a new file, get the next open location.
-			savedFile = tracker.getNextFile();
+		acceptedCount.incrementAndGet();
+		long startTime = System.nanoTime();
+		
+		if (index == null) {
+			if (quarantine != null) quarantine.insert(fileObject);
+			return null;
 		}
 
-		//At this point, savedFile points to where the file is to be stored.
-		//Make sure the parent directory exists.
-		File parent = savedFile.getAbsoluteFile().getParentFile();
-		parent.mkdirs();
-
-		//Store the object
-		if (fileObject.copyTo(savedFile)) {
-			//The store worked; update the index
-			String patientID = dicomObject.getPatientID();
-			String studyInstanceUID = dicomObject.getStudyInstanceUID();
-			String studyDate = dicomObject.getStudyDate();
-			String modality = dicomObject.getModality();
+		String patientID = dicomObject.getPatientID();
+		ReentrantLock lock = locks.get(patientID);
+		lock.lock();
+		try {
+			//The object is acceptable; get a place to store it.
+			//First, see if the object is already in the store;
+			File savedFile;
+			long fileID;
+			boolean allocated = false;
+			String uid = dicomObject.getSOPInstanceUID();
+			Instance existing = index.getInstance(uid);
+			
+			//Skip byte-identical re-sends. An instance that has already
+			//been exported keeps its exported flag, so it is not sent again.
+			if (isDuplicate(fileObject.getFile(), uid, existing)) {
+				duplicateCount.incrementAndGet();
+				duplicateBytes.addAndGet(fileObject.getFile().length());
+				lastFileStored = fileObject.getFile();
+				lastTime = System.currentTimeMillis();
+				lastFileOut = lastFileStored;
+				lastTimeOut = lastTime;
+				return fileObject;
+			}
+	
+			if (existing != null) {
+				//This file is already in the store; overwrite it in place.
+				fileID = existing.getFileID();
+			}
+			else {
+				//This is a new file, get the next open location.
+				fileID = index.allocate();
+				allocated = true;
+			}
+			savedFile = index.getTracker().getFile(fileID);
+	
 			try {
-				Patient pt = (Patient)patientIndex.get(patientID);
-				if (pt == null) pt = new Patient(patientID);
-				pt.setLastModifiedTime();
-				Study st = pt.getStudy(studyInstanceUID);
-				if (st == null) st = new Study(studyInstanceUID, studyDate, modality);
-				st.addInstanceUID(uid);
-				pt.addStudy(studyInstanceUID, st);
-				patientIndex.put(patientID, pt);
-				uidIndex.put(uid, savedFile.getAbsoluteFile());
-				commit();
+				//At this point, savedFile points to where the file is to be stored.
+				//Make sure the parent directory exists.
+				File parent = savedFile.getAbsoluteFile().getParentFile();
+				parent.mkdirs();
+		
+				//Store the object
+				String digest = place(fileObject.getFile(), savedFile);
+				long copyTime = System.nanoTime();
+				metrics.copy.record(copyTime - startTime);
+				if (digest != null) {
+					//The store worked; update the index.
+					//The index commits if the current batch is complete.
+					try {
+						index.addInstance(
+							patientID,
+							dicomObject.getStudyInstanceUID(),
+							dicomObject.getStudyDate(),
+							dicomObject.getModality(),
+							uid,
+							new Instance(fileID, savedFile, digest));
+						metrics.index.record(System.nanoTime() - copyTime);
+					}
+					catch (Exception ex) {
+						logger.warn("Unable to update the index for "+uid+" ("+savedFile.getAbsolutePath()+")", ex);
+					}
+				}
+				else {
+					if (quarantine != null) quarantine.insert(fileObject);
+					return null;
+				}
 			}
-			catch (Exception ex) {
-				logger.warn("Unable to update the index for "+uid+" ("+savedFile.getAbsolutePath()+")", ex);
+			finally {
+				if (allocated) index.release(fileID);
 			}
 		}
-		else {
-			if (quarantine != null) quarantine.insert(fileObject);
-			return null;
-		}
+		finally { lock.unlock(); }
 
+		metrics.store.record(System.nanoTime() - startTime);
+		version.incrementAndGet();
 		lastFileStored = fileObject.getFile();
 		lastTime = System.currentTimeMillis();
 		lastFileOut = lastFileStored;
@@ -272,74 +612,249 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 		return fileObject;
 	}
 	
+	//Determine whether a received file is identical to the stored
+	//instance with the same SOPInstanceUID, or, if there is none, to
+	//an exported instance whose tombstone is still in the index.
+	//The received file is read only if a candidate exists, and a
+	//stored file of a different length is not compared.
+	private boolean isDuplicate(File file, String uid, Instance existing) {
+		String digest = null;
+		if (existing != null) {
+			File storedFile = existing.getFile();
+			boolean stored = storedFile.exists();
+			if (stored && (StoredFile.getLength(storedFile) != file.length())) return false;
+			if (existing.hasDigest()) digest = existing.getDigest();
+			else if (stored) digest = getDigest(storedFile);
+		}
+		else if (tombstoneRetention > 0) digest = index.getExportedDigest(uid);
+		if ((digest == null) || digest.equals("")) return false;
+		return digest.equals( getDigest(file) );
+	}
+	
+	//Place a file in the store and return the hex MD5 digest of its
+	//contents, an empty string if the digest was not computed, or
+	//null if the file could not be stored. Linked and transferred
+	//files are not read by the stage, so their digests are computed
+	//when they are exported.
+	private String place(File inFile, File outFile) {
+		if (compress) return compress(inFile, outFile);
+		if (!linkFiles) return copy(inFile, outFile);
+		if (!(linksSupported && link(inFile, outFile)) && !transfer(inFile, outFile)) return null;
+		if (syncFiles) {
+			BufferIndex.sync(outFile);
+			BufferIndex.sync(outFile.getParentFile());
+		}
+		return "";
+	}
+	
+	//Hard-link a file into the store. The link is made under a temporary
+	//name and renamed into place, so an existing file in the slot is
+	//replaced atomically. The received file cannot be renamed because
+	//it still belongs to the pipeline. Returns false if the link could
+	//not be made, in which case links are not attempted again.
+	private boolean link(File inFile, File outFile) {
+		File tempFile = new File(outFile.getParentFile(), outFile.getName() + ".tmp");
+		try {
+			Files.deleteIfExists(tempFile.toPath());
+			Files.createLink(tempFile.toPath(), inFile.getAbsoluteFile().toPath());
+			Files.move(tempFile.toPath(), outFile.toPath(),
+						StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		}
+		catch (Exception ex) {
+			tempFile.delete();
+			linksSupported = false;
+			logger.info(name+": unable to link files into the store; files will be transferred ("+ex.getMessage()+")");
+			return false;
+		}
+	}
+	
+	//Copy a file to the store with FileChannel.transferTo, which lets
+	//the operating system copy the data without passing it through
+	//the stage. Returns false if the copy failed.
+	private boolean transfer(File inFile, File outFile) {
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = new FileInputStream(inFile);
+			out = new FileOutputStream(outFile);
+			FileChannel src = in.getChannel();
+			FileChannel dest = out.getChannel();
+			long size = src.size();
+			long position = 0;
+			while (position < size) {
+				position += src.transferTo(position, size - position, dest);
+			}
+			return true;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to store "+inFile+" in "+outFile, ex);
+			return false;
+		}
+		finally {
+			FileUtil.close(in);
+			FileUtil.close(out);
+		}
+	}
+	
+	//Compress a file into the store and return the hex MD5 digest of
+	//its original contents, or null if the file could not be stored.
+	private String compress(File inFile, File outFile) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] buffer = new byte[storeBufferSize];
+			long length = StoredFile.compress(inFile, outFile, compressionLevel, md, buffer, syncFiles);
+			if (syncFiles) BufferIndex.sync(outFile.getParentFile());
+			originalBytes.addAndGet(inFile.length());
+			compressedBytes.addAndGet(length);
+			return bytesToHex(md.digest());
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to store "+inFile+" in "+outFile, ex);
+			return null;
+		}
+	}
+	
+	//Copy a file to the store and return the hex MD5 digest of its
+	//contents, or null if the copy failed. The digest is computed in
+	//the same pass that writes the file, so the exporter does not have
+	//to read the file an extra time.
+	private String copy(File inFile, File outFile) {
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			in = new FileInputStream(inFile);
+			out = new FileOutputStream(outFile);
+			byte[] buffer = new byte[storeBufferSize];
+			int n;
+			while ( (n=in.read(buffer)) != -1 ) {
+				md.update(buffer, 0, n);
+				out.write(buffer, 0, n);
+			}
+			if (syncFiles) {
+				out.getFD().sync();
+				BufferIndex.sync(outFile.getParentFile());
+			}
+			out.close();
+			out = null;
+			return bytesToHex(md.digest());
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to store "+inFile+" in "+outFile, ex);
+			return null;
+		}
+		finally {
+			FileUtil.close(in);
+			FileUtil.close(out);
+		}
+	}
+	
+	//Compute the hex MD5 digest of a file.
+	//This is used for files stored before digests were
+	//recorded in the index.
+	//The digest of a compressed file is that of its original contents.
+	String getDigest(File file) {
+		try { return bytesToHex( StoredFile.digest(file, storeBufferSize) ); }
+		catch (Exception ex) { return ""; }
+	}
+
+	static String bytesToHex(byte[] bytes) {
+		char[] hex = new char[2 * bytes.length];
+		for (int i=0; i<bytes.length; i++) {
+			hex[2*i] = hexDigits[(bytes[i] >> 4) & 0xF];
+			hex[2*i+1] = hexDigits[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+	static final char[] hexDigits = "0123456789abcdef".toCharArray();
+	
 	/**
 	 * Get a Patient from the patientIndex by patientID.
 	 * @return the Patient.
 	 */
-	public synchronized Patient getPatient(String patientID) {
-		try { return (Patient)patientIndex.get(patientID); }
-		catch (Exception ex) { logger.warn("Unable to fetch patient "+patientID, ex); }
-		return null;
+	public Patient getPatient(String patientID) {
+		return index.getPatient(patientID);
 	}
 
 	/**
 	 * Store a Patient in the patientIndex by patientID.
 	 */
-	public synchronized void putPatient(Patient patient) {
-		try { 
-			patientIndex.put(patient.getPatientID(), patient); 
-			commit();
-		}
-		catch (Exception ex) { logger.warn("Unable to store patient "+patient.getPatientID(), ex); }
+	public void putPatient(Patient patient) {
+		ReentrantLock lock = locks.get(patient.getPatientID());
+		lock.lock();
+		try { index.putPatient(patient); }
+		finally { lock.unlock(); }
+		version.incrementAndGet();
 	}
 
 	/**
 	 * Delete a Patient from the database, including all the studies and the instances.
+	 * Instances received for the patient after the supplied Patient was obtained
+	 * are retained for a later export.
 	 */
-	public synchronized void deletePatient(Patient patient) {
-		try { 
-			//First delete all the instances in the patient's studies
-			//from the uidIndex.
-			for (Study study : patient.getStudies()) {
-				for (String uid : study.getInstanceUIDs()) {
-					File file = (File)uidIndex.get(uid);
-					uidIndex.remove(uid); //remove the reference
-					file.delete();
-				}
+	public void deletePatient(Patient patient) {
+		ReentrantLock lock = locks.get(patient.getPatientID());
+		lock.lock();
+		try {
+			List<Instance> instances = index.deletePatient(patient);
+			LinkedList<Long> ids = new LinkedList<Long>();
+			for (Instance instance : instances) {
+				instance.getFile().delete();
+				ids.add(instance.getFileID());
 			}
-			//Now delete the patient from the patientIndex.
-			patientIndex.remove(patient.getPatientID());
+			//Remove the directories emptied by the deletions.
+			index.getTracker().prune(ids, index.getFirstActiveSlot());
 		}
-		catch (Exception ex) { logger.warn("Unable to delete patient "+patient.getPatientID(), ex); }
-		commit();
+		finally { lock.unlock(); }
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Get the modification version of the buffer. The version increases
+	 * whenever an instance is stored or a patient is changed or removed,
+	 * so a page rendered from the buffer is current while the version
+	 * is unchanged.
+	 * @return the modification version.
+	 */
+	public long getVersion() {
+		return version.get();
 	}
 
 	/**
 	 * Get an array of Patients that have not been exported.
 	 * @return the Patients who have not been exported
-	 * (so they have Status.NONE).
+	 * (so they have Status.NONE), in PatientID order.
 	 */
-	public synchronized Patient[] getPatients() {
-		LinkedList<Patient> ptList = new LinkedList<Patient>();
-		try {
-			FastIterator fit = patientIndex.values();
-			Patient p;
-			while ( (p=(Patient)fit.next()) != null) {
-				if (p.getStatus().is(Status.NONE)) ptList.add(p);
-			}
-		}
-		catch (Exception ex) { logger.warn("Unable to get list of patients", ex); }
-		Patient[] pts = ptList.toArray( new Patient[ptList.size()] );
-		Arrays.sort(pts, new PatientIDComparator());
-		return pts;
+	public Patient[] getPatients() {
+		return getPatients(StatusIndex.NONE);
 	}
 	
-	class PatientIDComparator implements Comparator<Patient> {
-		public int compare(Patient p1, Patient p2) {
-			return p1.getPatientID().compareTo(p2.getPatientID());
+	//Get the Patients in a status index partition, in PatientID order.
+	//Each Patient is fetched separately so that the index is not held
+	//for the duration of the listing.
+	private Patient[] getPatients(int set) {
+		LinkedList<Patient> ptList = new LinkedList<Patient>();
+		for (String ptid : index.getPatientIDs(set)) {
+			Patient p = index.getPatient(ptid);
+			if (p != null) ptList.add(p);
 		}
+		return ptList.toArray( new Patient[ptList.size()] );
 	}
 
+	/**
+	 * Get a page of Patients, with their Study headers but without
+	 * their instance UIDs.
+	 * @param query the partition, filters, and cursor of the page.
+	 * @return the page.
+	 */
+	public PatientPage getPatients(PatientQuery query) {
+		if (index == null) return new PatientPage(new LinkedList<Patient>(), null);
+		query.limit = Math.max(1, Math.min(query.limit, maxPageSize));
+		return index.getPatients(query, Math.max(1000, 10 * query.limit));
+	}
+	static final int maxPageSize = 1000;
+
 	/**
 	 * Get an array of Patients that are ready for export.
 	 * To be ready, a Patient must have a submissionID and 
@@ -347,18 +862,11 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 	 * If the patient has a status, the export must have failed.
 	 * @return the Patients who are ready for export.
 	 */
-	public synchronized Patient[] getPatientsForExport() {
+	public Patient[] getPatientsForExport() {
 		LinkedList<Patient> ptList = new LinkedList<Patient>();
-		try {
-			FastIterator fit = patientIndex.values();
-			Patient p;
-			while ( (p=(Patient)fit.next()) != null) {
-				if (!p.getSubmissionID().equals("") && p.getStatus().is(Status.PENDING)) {
-					ptList.add(p);
-				}
-			}
+		for (Patient p : getPatients(StatusIndex.PENDING)) {
+			if (!p.getSubmissionID().equals("")) ptList.add(p);
 		}
-		catch (Exception ex) { logger.warn("Unable to get list of patients for export", ex); }
 		return ptList.toArray( new Patient[ptList.size()] );
 	}
 	
@@ -367,76 +875,51 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 	 * Status.NONE or Status PENDING.
 	 * This has the effect of allowing retries in case of export failures.
 	 */
-	public synchronized void reset() {
-		//First, get a list of patients to reset
-		LinkedList<Patient> ptList = new LinkedList<Patient>();
-		try {
-			FastIterator fit = patientIndex.values();
-			Patient p;
-			while ( (p=(Patient)fit.next()) != null) {
-				Status s = p.getStatus();
-				if (!s.is(Status.PENDING) && !s.is(Status.NONE)) {
-					ptList.add(p);
-				}
-			}
-		}
-		catch (Exception ex) { logger.warn("Unable to get list of patients for export", ex); }
-		//Now reset the patients in the list.
-		for (Patient p : ptList) {
-			p.setStatus(Status.NONE);
-			putPatient(p);
-		}
+	public void reset() {
+		index.resetFailures();
+		retryAttempts.clear();
+		version.incrementAndGet();
 	}
 	
 	/**
 	 * Get HTML text displaying the current status of the stage.
 	 * @return HTML text displaying the current status of the stage.
 	 */
-	public synchronized String getStatusHTML() {
-		int nUnqueuedPatients = 0;
-		int nUnqueuedStudies = 0;
-		int nUnqueuedInstances = 0;
-		int nQueuedPatients = 0;
-		int nQueuedStudies = 0;
-		int nQueuedInstances = 0;
-		int nFailedPatients = 0;
-		int nFailedStudies = 0;
-		int nFailedInstances = 0;
-		try {
-			FastIterator fit = patientIndex.values();
-			Patient p;
-			while ( (p=(Patient)fit.next()) != null) {
-				int nInstances = 0;
-				for (Study s : p.getStudies()) {
-					nInstances += s.getNumberOfInstances();
-				}
-				if (p.getStatus().is(Status.NONE)) {
-					nUnqueuedPatients++;
-					nUnqueuedStudies += p.getNumberOfStudies();
-					nUnqueuedInstances += nInstances;
-				}
-				else if (p.getStatus().is(Status.PENDING)) {
-					nQueuedPatients++;
-					nQueuedStudies += p.getNumberOfStudies();
-					nQueuedInstances += nInstances;
-				}
-				else {
-					nFailedPatients++;
-					nFailedStudies += p.getNumberOfStudies();
-					nFailedInstances += nInstances;
-				}
-			}
+	public String getStatusHTML() {
+		int[] unqueued = new int[3];
+		int[] queued = new int[3];
+		int[] failed = new int[3];
+		if (index != null) {
+			unqueued = index.getTotals(StatusIndex.NONE);
+			queued = index.getTotals(StatusIndex.PENDING);
+			failed = index.getTotals(StatusIndex.FAILED);
 		}
-		catch (Exception ignore) { }
+		int nUnqueuedPatients = unqueued[0];
+		int nUnqueuedStudies = unqueued[1];
+		int nUnqueuedInstances = unqueued[2];
+		int nQueuedPatients = queued[0];
+		int nQueuedStudies = queued[1];
+		int nQueuedInstances = queued[2];
+		int nFailedPatients = failed[0];
+		int nFailedStudies = failed[1];
+		int nFailedInstances = failed[2];
 		
 		StringBuffer sb = new StringBuffer();
 		sb.append("<h3>"+name+"</h3>");
 		sb.append("<table border=\"1\" width=\"100%\">");
 
 		sb.append("<tr><td width=\"20%\">Files received for storage:</td>"
-			+ "<td>" + totalCount + "</td></tr>");
+			+ "<td>" + totalCount.get() + "</td></tr>");
 		sb.append("<tr><td width=\"20%\">Files accepted for storage:</td>"
-			+ "<td>" + acceptedCount + "</td></tr>");
+			+ "<td>" + acceptedCount.get() + "</td></tr>");
+
+		sb.append("<tr><td width=\"20%\">Duplicate files skipped:</td>"
+			+ "<td>" + duplicateCount.get() + " (" + duplicateBytes.get() + " bytes)</td></tr>");
+
+		if (compress) {
+			sb.append("<tr><td width=\"20%\">Bytes compressed:</td>"
+				+ "<td>" + originalBytes.get() + " to " + compressedBytes.get() + "</td></tr>");
+		}
 
 		sb.append("<tr><td width=\"20%\">Last file stored:</td>");
 		if (lastTime != 0) {
@@ -464,11 +947,47 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 			+ "<td>" + nFailedStudies + "</td></tr>");
 		sb.append("<tr><td width=\"20%\">Failed images:</td>"
 			+ "<td>" + nFailedInstances + "</td></tr>");
+		sb.append("<tr><td width=\"20%\">Scheduled retries:</td>"
+			+ "<td>" + retries.size() + "</td></tr>");
+		sb.append("<tr><td width=\"20%\">Export concurrency limit:</td>"
+			+ "<td>" + limiter.getLimit() + " (" + limiter.getInFlight() + " in progress)</td></tr>");
 
 		sb.append("</table>");
 		return sb.toString();
 	}
 	
+	/**
+	 * Get the hot-path metrics of the stage as a JSON object.
+	 * @return JSON text containing the store, commit, and export
+	 * latency histograms, the export throughput, the counts of
+	 * response codes received from the destination, and the
+	 * depth of the export queue.
+	 */
+	public String getMetricsJSON() {
+		int[] queued = (index != null) ? index.getTotals(StatusIndex.PENDING) : new int[3];
+		ExportThread ex = exporter;
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"stage\":\""+name.replace("\\","\\\\").replace("\"","\\\"")+"\"");
+		sb.append(",\"received\":"+totalCount.get());
+		sb.append(",\"accepted\":"+acceptedCount.get());
+		sb.append(",\"duplicates\":"+duplicateCount.get());
+		sb.append(",\"duplicateBytes\":"+duplicateBytes.get());
+		sb.append(",\"uncommitted\":"+((index != null) ? index.getUncommitted() : 0));
+		sb.append(",");
+		metrics.appendTo(sb);
+		sb.append(",");
+		limiter.appendTo(sb);
+		sb.append(",\"queue\":{");
+		sb.append("\"patients\":"+queued[0]);
+		sb.append(",\"instances\":"+queued[2]);
+		sb.append(",\"waiting\":"+exportQueue.size());
+		sb.append(",\"submissions\":"+exportQueue.getSubmissions());
+		sb.append(",\"activePatients\":"+((ex != null) ? ex.getActivePatients() : 0));
+		sb.append(",\"activeInstances\":"+((ex != null) ? ex.getActiveInstances() : 0));
+		sb.append("}}");
+		return sb.toString();
+	}
+	
 	/**
 	 * Get the list of links for display on the summary page.
 	 * @param user the requesting user.
@@ -482,106 +1001,414 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 		return links;
 	}
 	
+	//======================
+	//    Export jobs
+	//======================
+	
+	//Completed jobs are kept for a week so that their results can be polled.
+	static final long jobRetention = 7 * 24 * 60 * 60 * 1000L;
+	
+	//The JobThread processes the stored export jobs in order. For each
+	//patient, it obtains an import event ID without holding any lock
+	//and then queues the patient with a single index update.
+	class JobThread extends Thread {
+		boolean wakeUp = false;
+		long lastTombstoneCheck = 0;
+		
+		public JobThread() {
+			super(id + "_jobs");
+		}
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					for (ExportJob job : index.getPendingJobs()) runJob(job);
+					index.removeJobs(System.currentTimeMillis() - jobRetention);
+					removeTombstones();
+					synchronized (this) {
+						if (!wakeUp) wait(60000);
+						wakeUp = false;
+					}
+				}
+			}
+			catch (Exception ex) {
+				logger.info(getName() + " interrupted");
+			}
+		}
+		//Remove the expired tombstones once an hour.
+		private void removeTombstones() {
+			long now = System.currentTimeMillis();
+			if ((tombstoneRetention > 0) && (now - lastTombstoneCheck > 3600 * oneSecond)) {
+				lastTombstoneCheck = now;
+				int n = index.removeTombstones(now - tombstoneRetention);
+				if (n > 0) logger.info(name+": removed "+n+" expired tombstone"+((n!=1)?"s":""));
+			}
+		}
+		private void runJob(ExportJob job) {
+			String ptid;
+			while ( !isInterrupted() && ((ptid=job.getNextPatientID()) != null) ) {
+				boolean queued = false;
+				try {
+					String submissionID = getImportEventID(job.getComment());
+					queued = index.queue(ptid, job.getComment(), submissionID);
+					if (queued) {
+						version.incrementAndGet();
+						Patient p = index.getPatient(ptid);
+						if (p != null) exportQueue.add(p);
+					}
+				}
+				catch (Exception ex) {
+					logger.warn("Unable to queue "+ptid+" for export job "+job.getID(), ex);
+				}
+				job.advance(queued);
+				index.putJob(job);
+			}
+		}
+		public synchronized void wakeUp() {
+			wakeUp = true;
+			notify();
+		}
+	}
+	
+	//======================
+	//    Export retries
+	//======================
+	
+	//Patients whose export failed with Status.RETRY are requeued after a
+	//delay that doubles with each attempt up to retryMaxDelay. The delay
+	//is jittered so that patients that failed together do not all retry
+	//together. Patients that failed with Status.FAIL are left for the
+	//administrator to reset.
+	final DelayQueue<Retry> retries = new DelayQueue<Retry>();
+	final ConcurrentHashMap<String,AtomicInteger> retryAttempts = new ConcurrentHashMap<String,AtomicInteger>();
+	
+	private void scheduleRetry(String patientID) {
+		AtomicInteger attempts = retryAttempts.get(patientID);
+		if (attempts == null) {
+			AtomicInteger current = retryAttempts.putIfAbsent(patientID, attempts = new AtomicInteger(0));
+			if (current != null) attempts = current;
+		}
+		int attempt = attempts.incrementAndGet();
+		if ((retryLimit > 0) && (attempt > retryLimit)) {
+			logger.warn("Export retry limit reached for "+patientID+"; the patient remains failed.");
+			retryAttempts.remove(patientID);
+			return;
+		}
+		long delay = retryInitialDelay << Math.min(attempt - 1, 20);
+		if ((delay <= 0) || (delay > retryMaxDelay)) delay = retryMaxDelay;
+		delay = delay/2 + (long)(ThreadLocalRandom.current().nextDouble() * delay/2);
+		retries.put( new Retry(patientID, System.currentTimeMillis() + delay) );
+	}
+	
+	static class Retry implements Delayed {
+		final String patientID;
+		final long time;
+		
+		Retry(String patientID, long time) {
+			this.patientID = patientID;
+			this.time = time;
+		}
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+		public int compareTo(Delayed d) {
+			long t = ((Retry)d).time;
+			return (time < t) ? -1 : ((time > t) ? 1 : 0);
+		}
+	}
+	
+	//The RetryThread waits for the next scheduled retry and requeues
+	//the patient if it is still waiting for a retry. At startup, it
+	//schedules the patients that were waiting when the stage stopped.
+	class RetryThread extends Thread {
+		public RetryThread() {
+			super(id + "_retries");
+		}
+		public void run() {
+			try {
+				for (String ptid : index.getPatientIDs(StatusIndex.FAILED)) {
+					Patient p = index.getPatient(ptid);
+					if ((p != null) && p.getStatus().is(Status.RETRY)) scheduleRetry(ptid);
+				}
+				while (!isInterrupted()) {
+					Retry retry = retries.take();
+					Patient p = index.getPatient(retry.patientID);
+					if ((p != null) && p.getStatus().is(Status.RETRY)) {
+						index.setStatus(retry.patientID, Status.PENDING);
+						version.incrementAndGet();
+						exportQueue.add(p);
+					}
+				}
+			}
+			catch (Exception ex) {
+				logger.info(getName() + " interrupted");
+			}
+		}
+	}
+	
+	//======================
+	//    Group commits
+	//======================
+	
+	class CommitThread extends Thread {
+		public CommitThread() {
+			super(id + "_committer");
+		}
+		public void run() {
+			try {
+				while (!isInterrupted()) {
+					Thread.sleep(commitInterval);
+					index.flush();
+				}
+			}
+			catch (Exception ex) {
+				logger.info(getName() + " interrupted");
+			}
+		}
+	}
+	
 	//======================
 	//    POSDA export
 	//======================
 	
+	//The ExportThread takes the patients that are ready for export
+	//from the exportQueue and hands their instances to a pool of
+	//exportThreads workers. Up to exportThreads patients are in
+	//progress at any time, and the instances of each patient are
+	//uploaded concurrently. The thread waits for a free slot and
+	//then for a queued patient, so it never polls the index.
 	class ExportThread extends Thread {
+		final ExecutorService workers;
+		final ConcurrentHashMap<String,PatientExport> active;
+		final HashSet<String> requeue = new HashSet<String>();
+		final Semaphore slots;
+		
 		public ExportThread() {
 			super(id + "_exporter");
+			active = new ConcurrentHashMap<String,PatientExport>();
+			workers = Executors.newFixedThreadPool(exportThreads, new WorkerFactory());
+			slots = new Semaphore(exportThreads);
 		}
 		public void run() {
 			logger.info("ExportThread "+getName()+" started");
 			try {
 				Thread.sleep(10000); //wait 10 secs to start
+				//Queue the patients that were waiting when the stage stopped
+				for (Patient p : getPatientsForExport()) exportQueue.add(p);
 				while (!isInterrupted()) {
-					exportPatients();
-					if (isInterrupted()) break;
-					tracker.purge();
-					Thread.sleep(10000); //wait 10 secs before polling the index again
+					slots.acquire();
+					String ptid;
+					try { ptid = exportQueue.take(); }
+					catch (InterruptedException ex) {
+						slots.release();
+						throw ex;
+					}
+					if (!startExport(ptid)) slots.release();
 				}
 			}
 			catch (Exception ex) {
 				logger.info(getName() + " interrupted");
 			}
+			workers.shutdownNow();
+			try { workers.awaitTermination(30, TimeUnit.SECONDS); }
+			catch (Exception ignore) { }
+		}
+	
+		//Start the export of a patient if it is still ready for export.
+		//A patient taken from the queue while its previous export is
+		//still running is queued again when that export finishes.
+		private boolean startExport(String ptid) {
+			synchronized (active) {
+				if (active.containsKey(ptid)) {
+					requeue.add(ptid);
+					return false;
+				}
+			}
+			//Load the patient with the UIDs of its instances
+			Patient p = index.getPatient(ptid, true);
+			if ((p == null) 
+					|| !p.getStatus().is(Status.PENDING) 
+						|| p.getSubmissionID().equals("")) return false;
+			PatientExport pe = new PatientExport(p);
+			active.put(ptid, pe);
+			pe.start();
+			return true;
 		}
 		
-		private void purge() {
-			
+		int getActivePatients() {
+			return active.size();
 		}
-	
-		private void exportPatients() {
-			//logger.info("exportPatients called: "+getPatientsForExport().length + " available for export");
-			for (Patient p : getPatientsForExport()) {
-				//logger.info("Exporting patient "+p.getPatientID());
-				if (isInterrupted()) break;
-				exportPatient(p);
+		
+		int getActiveInstances() {
+			int n = 0;
+			for (PatientExport pe : active.values()) n += Math.max(pe.remaining.get() - 1, 0);
+			return n;
+		}
+		
+		//Called by a PatientExport when its last instance completes.
+		private void finished(PatientExport pe) {
+			String ptid = pe.patient.getPatientID();
+			boolean again;
+			synchronized (active) {
+				active.remove(ptid);
+				again = requeue.remove(ptid);
+			}
+			slots.release();
+			if (again) {
+				Patient p = index.getPatient(ptid);
+				if (p != null) exportQueue.add(p);
 			}
 		}
-
-		private void exportPatient(Patient p) {
-			Status status = null; 
-			File file = null;
-			try {
-				String submissionID = p.getSubmissionID();
-				for (Study study : p.getStudies()) {
-					for (String uid : study.getInstanceUIDs()) {
-						file = getFileForUID(uid);
-						if (file != null) {
-							status = export(file, submissionID);
-							if (!status.is(Status.OK)) {
-								throw new Exception("Export failed");
+		
+		class WorkerFactory implements ThreadFactory {
+			final AtomicInteger n = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, id + "_export_" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}
+		
+		//The export of one patient. Each instance is submitted to the
+		//worker pool; the last instance to complete decides whether
+		//the patient is deleted (all instances returned OK) or stored
+		//with the status of the first failure.
+		class PatientExport {
+			final Patient patient;
+			final String submissionID;
+			final AtomicInteger remaining = new AtomicInteger(0);
+			final AtomicReference<Status> failure = new AtomicReference<Status>(null);
+			volatile File failedFile = null;
+			
+			PatientExport(Patient patient) {
+				this.patient = patient;
+				this.submissionID = patient.getSubmissionID();
+			}
+			
+			void start() {
+				LinkedList<String> uids = new LinkedList<String>();
+				for (Study study : patient.getStudies()) {
+					uids.addAll( Arrays.asList( study.getInstanceUIDs() ) );
+				}
+				remaining.set(uids.size() + 1);
+				try {
+					for (final String uid : uids) {
+						workers.execute( new Runnable() {
+							public void run() { exportInstance(uid); }
+						});
+					}
+				}
+				catch (Exception ex) {
+					//The pool has been shut down
+					failure.compareAndSet(null, Status.RETRY);
+				}
+				//Release the reference held while submitting
+				done();
+			}
+			
+			void exportInstance(String uid) {
+				try {
+					if ((failure.get() == null) && !Thread.currentThread().isInterrupted()) {
+						//Instances accepted in an earlier attempt are not sent again.
+						Instance instance = getInstance(uid);
+						if ((instance != null) && !instance.isExported()) {
+							File file = instance.getFile();
+							String digest = instance.hasDigest() ? instance.getDigest() : getDigest(file);
+							Status status = export(file, digest, submissionID);
+							if (status.is(Status.OK)) {
+								index.setExported(uid, digest);
+								if (deleteExportedFiles) file.delete();
+							}
+							else if (failure.compareAndSet(null, status)) {
+								failedFile = file;
 							}
 						}
 					}
+					else failure.compareAndSet(null, Status.RETRY);
+				}
+				catch (Exception ex) {
+					failure.compareAndSet(null, Status.RETRY);
 				}
-				//If we get here, everything worked.
-				//Flush the patient from the buffer.
-				deletePatient(p);
+				finally { done(); }
 			}
-			catch (Exception ex) {
-				String ptid = "?";
-				ptid = p.getPatientID();
-				p.setStatus(status);
-				putPatient(p);
-				logger.warn("Export failed: id="+ptid+"; status="+status+"; "+file);			
+			
+			void done() {
+				if (remaining.decrementAndGet() == 0) {
+					Status status = failure.get();
+					if (status == null) {
+						//Everything worked.
+						//Flush the patient from the buffer.
+						deletePatient(patient);
+						retryAttempts.remove(patient.getPatientID());
+					}
+					else {
+						//Update the current record so that instances
+						//received during the export are not lost.
+						index.setStatus(patient.getPatientID(), status);
+						version.incrementAndGet();
+						logger.warn("Export failed: id="+patient.getPatientID()+"; status="+status+"; "+failedFile);
+						if (status.is(Status.RETRY)) scheduleRetry(patient.getPatientID());
+						else retryAttempts.remove(patient.getPatientID());
+					}
+					finished(this);
+				}
 			}
 		}
 		
-		private Status export(File fileToExport, String importEventID) {
+		private Status export(File fileToExport, String digest, String importEventID) {
 			//Do not export zero-length files
-			long fileLength = fileToExport.length();
+			boolean compressed = StoredFile.isCompressed(fileToExport);
+			long fileLength = StoredFile.getLength(fileToExport);
 			if (fileLength == 0) return Status.OK;
+			
+			//Compressed files are sent as they are stored if the
+			//destination accepts deflated bodies, and inflated otherwise.
+			boolean deflated = compressed && sendCompressed;
+			long bodyLength = deflated ? fileToExport.length() - StoredFile.headerLength : fileLength;
 
 			HttpURLConnection conn = null;
-			OutputStream svros = null;
+			boolean acquired = false;
+			int responseCode = 0;
+			long retryAfter = 0;
+			long startTime = 0;
 			try {
-				FileObject fileObject = FileObject.getInstance( fileToExport );
-				String patientID = fileObject.getPatientID();
-
-				String hash = getDigest(fileToExport).toLowerCase();
+				//Use the digest computed when the file was stored, if available
+				String hash = ((digest != null) && !digest.equals("")) ? digest : getDigest(fileToExport);
 				String query = "?import_event_id="+importEventID+"&digest="+hash+"&apikey="+apikey;
 				URL u = new URL(getURL() + query);
 				logger.debug("Export URL: "+u.toString());
 
+				//Wait for the limiter to allow another request
+				limiter.acquire();
+				acquired = true;
+
 				//Establish the connection
+				startTime = System.nanoTime();
 				conn = HttpUtil.getConnection(u);
-				conn.setReadTimeout(connectionTimeout);
-				conn.setConnectTimeout(readTimeout);
+				conn.setConnectTimeout(connectionTimeout);
+				conn.setReadTimeout(readTimeout);
 				conn.setRequestMethod("PUT"); //POSDA requires PUT
+				conn.setDoOutput(true);
+				//Stream the file with a Content-Length header rather
+				//than letting the connection buffer the whole file.
+				if (deflated) conn.setRequestProperty("Content-Encoding", "deflate");
+				conn.setFixedLengthStreamingMode(bodyLength);
 				conn.connect();
 
 				//Send the file to the server
-				svros = conn.getOutputStream();
-				FileUtil.streamFile(fileToExport, svros);
+				OutputStream svros = conn.getOutputStream();
+				if (compressed) send(fileToExport, svros, deflated);
+				else send(fileToExport, svros);
+				svros.close();
 
-				//Get the response
+				//Get the response. The response is read completely and
+				//the connection is not disconnected, so the connection
+				//returns to the keep-alive cache for the next upload.
 				Status result = Status.OK;
-				int responseCode = conn.getResponseCode();
-				String responseText = "";
-				try { responseText = FileUtil.getTextOrException( conn.getInputStream(), FileUtil.utf8, false ); }
-				catch (Exception ex) { logger.warn("Unable to read response: "+ex.getMessage()); }
-				conn.disconnect();
+				responseCode = conn.getResponseCode();
+				retryAfter = 1000L * StringUtil.getLong(conn.getHeaderField("Retry-After"), 0);
+				metrics.exported(System.nanoTime() - startTime, bodyLength);
+				metrics.response(responseCode);
+				String responseText = readResponse(conn);
 				if (responseCode == HttpResponse.unprocessable) {
 					logger.warn("Unprocessable response from server for: " + fileToExport);
 					logger.warn("Response text: "+responseText);
@@ -592,45 +1419,73 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 					logger.warn("Response text: "+responseText);
 					result = Status.RETRY;
 				}
-				conn.disconnect();
 				return result;
 			}
 			catch (Exception e) {
+				//The state of the connection is unknown; close it.
+				if (conn != null) conn.disconnect();
+				metrics.response(0);
 				if (logger.isDebugEnabled()) logger.debug(name+": export failed: " + e.getMessage(), e);
 				else logger.warn(name+": export failed: " + e.getMessage());
 				return logger.isDebugEnabled() ? Status.FAIL : Status.RETRY;
 			}
-		}
-
-		private String getDigest(File file) {
-			String result = "";
-			BufferedInputStream bis = null;
-			DigestInputStream dis = null;
-			try {
-				MessageDigest md = MessageDigest.getInstance("MD5");
-				md.reset();
-				bis = new BufferedInputStream( new FileInputStream( file ) );
-				dis = new DigestInputStream( bis, md );
-				while (dis.read() != -1) ; //empty loop
-				result = bytesToHex(md.digest());
-			}
-			catch (Exception ex) { result = ""; }
 			finally {
-				try { dis.close(); }
-				catch (Exception ignore) { }
-				try { bis.close(); }
-				catch (Exception ignore) { }
+				if (acquired) limiter.release(responseCode, System.nanoTime() - startTime, retryAfter);
 			}
-			return result.toString();
 		}
-
-		private String bytesToHex(byte[] bytes) {
-			StringBuilder sb = new StringBuilder();
-			for (byte b : bytes) {
-				sb.append(String.format("%02x", b));
+	}
+	
+	//A buffer for each export worker, used to read files for upload.
+	final ThreadLocal<ByteBuffer> exportBuffer = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(exportBufferSize);
+		}
+	};
+	
+	//Send a file to an upload stream, reading it through a FileChannel
+	//into the worker's buffer. HttpURLConnection does not expose its
+	//socket, so a zero-copy transfer is not possible; FileChannel.transferTo
+	//to a stream would copy through a small temporary buffer instead.
+	private void send(File file, OutputStream out) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = exportBuffer.get();
+			buffer.clear();
+			while (channel.read(buffer) != -1) {
+				out.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
 			}
-			return sb.toString();
 		}
+		finally { FileUtil.close(in); }
+	}
+	
+	//Send a compressed file to an upload stream, either
+	//as it is stored or inflated, through the worker's buffer.
+	private void send(File file, OutputStream out, boolean deflated) throws IOException {
+		InputStream in = deflated ? StoredFile.openCompressed(file) : StoredFile.open(file, exportBufferSize);
+		try {
+			byte[] buffer = exportBuffer.get().array();
+			int n;
+			while ( (n=in.read(buffer)) != -1 ) out.write(buffer, 0, n);
+		}
+		finally { FileUtil.close(in); }
+	}
+	
+	//Read the response to a request completely and close the stream,
+	//which allows the connection to be reused. For error responses,
+	//the text is in the error stream.
+	private String readResponse(HttpURLConnection conn) {
+		InputStream in = null;
+		try { in = conn.getInputStream(); }
+		catch (IOException ex) { in = conn.getErrorStream(); }
+		if (in == null) return "";
+		try { return FileUtil.getTextOrException( in, FileUtil.utf8, false ); }
+		catch (Exception ex) {
+			logger.warn("Unable to read response: "+ex.getMessage());
+			return "";
+		}
+		finally { FileUtil.close(in); }
 	}
 	
 	private String getURL() throws Exception {
@@ -656,14 +1511,14 @@ public class IndexedDicomBuffer extends AbstractPipelineStage implements Storage
 		URL u = new URL(getEventIDRequestURL(message));
 		logger.debug("getImportEventID URL: "+u.toString());
 		conn = HttpUtil.getConnection(u);
-		conn.setReadTimeout(connectionTimeout);
-		conn.setConnectTimeout(readTimeout);
+		conn.setConnectTimeout(connectionTimeout);
+		conn.setReadTimeout(readTimeout);
 		conn.setRequestMethod("PUT");
 		conn.connect();
 		int responseCode = conn.getResponseCode();
 		logger.debug("...responseCode: " + responseCode);
-		String text = FileUtil.getTextOrException( conn.getInputStream(), FileUtil.utf8, false );
-		conn.disconnect();
+		String text = readResponse(conn);
+		if (responseCode != HttpResponse.ok) throw new IOException("Import event request failed ("+responseCode+")");
 		logger.debug("...response text: \""+text+"\"");
 		if (text.contains("\"status\":\"success\"") && text.contains("\"import_event_id\":")) {
 			text = text.replaceAll("[^0-9]", "");
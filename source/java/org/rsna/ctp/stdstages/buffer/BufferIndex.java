@@ -0,0 +1,1108 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.htree.HTree;
+import jdbm.helper.ByteArrayComparator;
+import jdbm.helper.ByteArraySerializer;
+import jdbm.helper.FastIterator;
+import jdbm.helper.LongComparator;
+import jdbm.helper.Serializer;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.pipeline.Status;
+import org.rsna.util.JdbmUtil;
+
+/**
+ * The persistent index of an IndexedDicomBuffer, kept in a JDBM database.
+ * This is the default StoreIndex.
+ * <p>
+ * A JDBM RecordManager is not thread-safe, so every method that touches
+ * the index is synchronized. Each method is a short critical section that
+ * leaves the index consistent, so the updates made by concurrent threads
+ * can be committed together at any method boundary. Callers that need a
+ * sequence of calls on one patient to be atomic must hold that patient's
+ * lock from a PatientLocks object.
+ * <p>
+ * The index is normalized so that storing an instance writes only small
+ * records whose size does not depend on the number of instances:
+ * <ul>
+ * <li>patientIndex: PatientID to Patient header (status and Study record IDs)
+ * <li>Study headers: separate records containing the number of instances
+ * <li>memberIndex: a BTree of membership keys (Study record ID and SOPInstanceUID)
+ * <li>uidIndex: a BTree of SOPInstanceUID to Instance (store slot ID and digest)
+ * <li>tracker: a separate record containing the Tracker
+ * <li>jobIndex: a BTree of job ID to ExportJob
+ * <li>tombstones: a BTree of SOPInstanceUID to the time and digest of
+ * an exported instance that has been removed from the index
+ * </ul>
+ * The keys of the memberIndex and uidIndex are byte arrays containing
+ * SOPInstanceUIDs in their CompactUID encoding. Indexes created before
+ * this layout are migrated when they are first opened.
+ * <p>
+ * Commits are grouped: addInstance() commits only when commitBatchSize
+ * instances are pending or the batch has been open for commitInterval ms.
+ * The committed Tracker position is the lowest store slot that has been
+ * allocated but not yet indexed, so all the files whose index entries
+ * can be lost in a crash lie at or after that position.
+ */
+public class BufferIndex implements StoreIndex {
+	
+	static final Logger logger = Logger.getLogger(BufferIndex.class);
+	
+	File indexFile = null;
+	RecordManager recman = null;
+	HTree patientIndex = null;
+	BTree uidIndex = null;
+	BTree memberIndex = null;
+	StatusIndex statusIndex = null;
+	BTree jobIndex = null;
+	BTree tombstones = null;
+	boolean keepTombstones = false;
+	long jobCounterID = 0;
+	Tracker tracker = null;
+	SlotLimit slotLimit = null;
+	long trackerID = 0;
+	final TreeSet<Long> inFlight = new TreeSet<Long>();
+	final Metrics metrics;
+	
+	final int commitBatchSize;
+	final long commitInterval;
+	int uncommitted = 0;
+	long lastCommitTime = 0;
+	IndexCompactor compactor = null;
+	boolean syncOnCommit = false;
+	LinkedList<File> unsynced = new LinkedList<File>();
+	
+	/**
+	 * Open the index, creating it if necessary.
+	 * @param indexDir the directory containing the index files.
+	 * @param storeDir the root directory of the stored files.
+	 * @param commitBatchSize the maximum number of instances per commit.
+	 * @param commitInterval the maximum time (in ms) that an instance can remain uncommitted.
+	 * @param metrics the Metrics in which to record commit latencies.
+	 * @throws Exception if the index cannot be opened.
+	 */
+	public BufferIndex(File indexDir, File storeDir, int commitBatchSize, long commitInterval, Metrics metrics) throws Exception {
+		this.commitBatchSize = commitBatchSize;
+		this.commitInterval = commitInterval;
+		this.metrics = metrics;
+		indexFile = new File(indexDir, "__index");
+		slotLimit = new SlotLimit(indexDir);
+		IndexCompactor.recover(indexFile);
+		recman = JdbmUtil.getRecordManager( indexFile.getPath() );
+		patientIndex = JdbmUtil.getHTree( recman, "patientIndex" );
+		if (patientIndex == null) throw new IOException("Unable to load the index.");
+		HTree legacyUIDs = null;
+		long recid = recman.getNamedObject("uidIndex");
+		if (recid != 0) legacyUIDs = HTree.load(recman, recid);
+		trackerID = recman.getNamedObject("tracker");
+		if (trackerID != 0) tracker = (Tracker)recman.fetch(trackerID);
+		else {
+			if (legacyUIDs != null) tracker = (Tracker)legacyUIDs.get("__tracker");
+			if (tracker == null) tracker = new Tracker(storeDir);
+			trackerID = recman.insert(tracker);
+			recman.setNamedObject("tracker", trackerID);
+			commit();
+		}
+		statusIndex = new StatusIndex(recman);
+		if (statusIndex.isNew()) buildStatusIndex();
+		jobIndex = loadBTree("exportJobs");
+		if (jobIndex == null) {
+			jobIndex = BTree.createInstance(recman, new LongComparator());
+			recman.setNamedObject("exportJobs", jobIndex.getRecid());
+			jobCounterID = recman.insert(Long.valueOf(0));
+			recman.setNamedObject("jobCounter", jobCounterID);
+			recman.commit();
+		}
+		else jobCounterID = recman.getNamedObject("jobCounter");
+		tombstones = loadBTree("exported");
+		if (tombstones == null) {
+			tombstones = createBTree("exported", new ByteArraySerializer());
+			recman.commit();
+		}
+		
+		//The new trees are named as soon as they are created, and the
+		//migration is marked as in progress until it completes, so an
+		//interrupted migration resumes when the index is next opened.
+		//Every migration step can safely be repeated.
+		boolean migrating = (recman.getNamedObject("migrating") != 0);
+		uidIndex = loadBTree("uidFiles");
+		if (uidIndex == null) {
+			uidIndex = createBTree("uidFiles", new ByteArraySerializer());
+			migrating = true;
+		}
+		memberIndex = loadBTree("members");
+		if (memberIndex == null) {
+			memberIndex = createBTree("members", new ByteArraySerializer());
+			migrating = true;
+		}
+		if (migrating) {
+			recman.setNamedObject("migrating", 1);
+			recman.commit();
+			if (legacyUIDs != null) migrateUIDs(legacyUIDs);
+			BTree legacyInstances = loadBTree("uids");
+			if (legacyInstances != null) migrateInstances(legacyInstances);
+			BTree legacyMembers = loadBTree("instanceIndex");
+			if (legacyMembers != null) migrateMembers(legacyMembers);
+			migrate();
+			recman.setNamedObject("uidIndex", 0);
+			recman.setNamedObject("uids", 0);
+			recman.setNamedObject("instanceIndex", 0);
+			recman.setNamedObject("migrating", 0);
+			commit();
+		}
+	}
+	
+	/**
+	 * Move the files of an index that cannot be opened aside, so that
+	 * a new index can be created. The files are kept for analysis.
+	 * @param indexDir the directory containing the index files.
+	 */
+	public static void discard(File indexDir) throws IOException {
+		IndexCompactor.rename(new File(indexDir, "__index"), new File(indexDir, "__corrupt"));
+	}
+	
+	//Load the structures of an index in the current layout.
+	//This is used to reopen the index after a compaction.
+	private void load() throws IOException {
+		patientIndex = JdbmUtil.getHTree( recman, "patientIndex" );
+		uidIndex = loadBTree("uidFiles");
+		memberIndex = loadBTree("members");
+		statusIndex = new StatusIndex(recman);
+		jobIndex = loadBTree("exportJobs");
+		tombstones = loadBTree("exported");
+		jobCounterID = recman.getNamedObject("jobCounter");
+		trackerID = recman.getNamedObject("tracker");
+		if ((patientIndex == null) || (uidIndex == null) || (memberIndex == null)
+				|| (jobIndex == null) || (tombstones == null) || (jobCounterID == 0) || (trackerID == 0)) {
+			throw new IOException("Unable to load the index.");
+		}
+	}
+	
+	private BTree loadBTree(String name) throws IOException {
+		long recid = recman.getNamedObject(name);
+		return (recid != 0) ? BTree.load(recman, recid) : null;
+	}
+	
+	private BTree createBTree(String name, Serializer valueSerializer) throws IOException {
+		BTree tree = BTree.createInstance(recman, 
+										  new ByteArrayComparator(), 
+										  new ByteArraySerializer(), 
+										  valueSerializer);
+		recman.setNamedObject(name, tree.getRecid());
+		return tree;
+	}
+	
+	//Copy the entries of a uidIndex created before UIDs were
+	//stored in their compact encoding.
+	private void migrateUIDs(HTree legacy) throws IOException {
+		FastIterator fit = legacy.keys();
+		Object key;
+		int n = 0;
+		while ( (key=fit.next()) != null ) {
+			String uid = (String)key;
+			if (uid.equals("__tracker")) continue;
+			putLegacyInstance(CompactUID.encode(uid), legacy.get(uid));
+			if ((++n % 1000) == 0) recman.commit();
+		}
+		recman.commit();
+		logger.info("UID index migrated for "+n+" instance"+((n!=1)?"s":""));
+	}
+	
+	//Copy the entries of a uidIndex created before Instances
+	//were stored as store slot IDs.
+	private void migrateInstances(BTree legacy) throws IOException {
+		TupleBrowser browser = legacy.browse();
+		Tuple tuple = new Tuple();
+		int n = 0;
+		while (browser.getNext(tuple)) {
+			putLegacyInstance((byte[])tuple.getKey(), tuple.getValue());
+			if ((++n % 1000) == 0) recman.commit();
+		}
+		recman.commit();
+		logger.info("Instance records migrated for "+n+" instance"+((n!=1)?"s":""));
+	}
+	
+	//Store a legacy uidIndex value, which is either a File
+	//or an Instance containing the File and the digest.
+	private void putLegacyInstance(byte[] key, Object value) throws IOException {
+		File file = null;
+		String digest = null;
+		if (value instanceof Instance) {
+			file = ((Instance)value).getFile();
+			digest = ((Instance)value).getDigest();
+		}
+		else if (value instanceof File) file = (File)value;
+		long fileID = (file != null) ? tracker.getFileID(file) : -1;
+		if (fileID >= 0) uidIndex.insert(key, new Instance(fileID, file, digest).getBytes(), true);
+		else logger.warn("Unable to migrate the index entry for "+CompactUID.decode(key)+" ("+file+")");
+	}
+	
+	//Copy the entries of a String-keyed instanceIndex, whose keys
+	//have the form studyID/SOPInstanceUID.
+	private void migrateMembers(BTree legacy) throws IOException {
+		TupleBrowser browser = legacy.browse();
+		Tuple tuple = new Tuple();
+		int n = 0;
+		while (browser.getNext(tuple)) {
+			String key = (String)tuple.getKey();
+			int k = key.indexOf("/");
+			long id = Long.parseLong(key.substring(0, k));
+			byte[] uid = CompactUID.encode(key.substring(k+1));
+			memberIndex.insert(getMemberKey(id, uid), present, true);
+			if ((++n % 1000) == 0) recman.commit();
+		}
+		recman.commit();
+		logger.info("Instance index migrated for "+n+" instance"+((n!=1)?"s":""));
+	}
+	
+	//Convert the Patient records of an index created before the
+	//normalized layout. Each legacy Patient contains its Studies,
+	//each of which contains the full set of its instance UIDs.
+	//The changes are committed periodically to limit the size
+	//of the transaction.
+	private void migrate() throws IOException {
+		LinkedList<String> ptids = new LinkedList<String>();
+		FastIterator fit = patientIndex.keys();
+		Object key;
+		while ( (key=fit.next()) != null ) ptids.add( (String)key );
+		int n = 0;
+		for (String ptid : ptids) {
+			Patient legacy = (Patient)patientIndex.get(ptid);
+			if ((legacy != null) && legacy.isLegacy()) {
+				Patient header = legacy.getHeader();
+				for (Study study : legacy.getStudies()) {
+					Study studyHeader = study.getHeader();
+					long id = recman.insert(studyHeader);
+					header.addStudyID(study.getStudyInstanceUID(), id);
+					for (String uid : study.getInstanceUIDs()) {
+						memberIndex.insert(getMemberKey(id, CompactUID.encode(uid)), present, true);
+					}
+				}
+				patientIndex.put(ptid, header);
+				if ((++n % 100) == 0) recman.commit();
+			}
+		}
+		recman.commit();
+		if (n > 0) logger.info("Index layout migrated for "+n+" patient"+((n!=1)?"s":""));
+	}
+	
+	//The value of every memberIndex entry.
+	static final byte[] present = new byte[0];
+	
+	//Get the memberIndex key for an instance of a Study: the eight
+	//bytes of the Study record ID followed by the encoded UID.
+	//The keys of one Study form a contiguous range.
+	static byte[] getMemberKey(long studyID, byte[] uid) {
+		byte[] key = new byte[8 + uid.length];
+		for (int i=0; i<8; i++) key[i] = (byte)(studyID >>> (56 - 8*i));
+		System.arraycopy(uid, 0, key, 8, uid.length);
+		return key;
+	}
+	
+	//Get the SOPInstanceUIDs of a Study from the memberIndex.
+	private InstanceSet getInstances(long studyID, int nInstances) throws IOException {
+		InstanceSet instances = new InstanceSet(nInstances);
+		byte[] prefix = getMemberKey(studyID, present);
+		TupleBrowser browser = memberIndex.browse(prefix);
+		Tuple tuple = new Tuple();
+		while (browser.getNext(tuple)) {
+			byte[] key = (byte[])tuple.getKey();
+			if (!hasPrefix(key, prefix)) break;
+			instances.addEncoded(key, 8, key.length - 8);
+		}
+		return instances;
+	}
+	
+	static boolean hasPrefix(byte[] key, byte[] prefix) {
+		if (key.length < prefix.length) return false;
+		for (int i=0; i<prefix.length; i++) {
+			if (key[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+	
+	//Load a Patient and its Study headers. The objects returned by
+	//JDBM are shared with its cache, so copies are returned.
+	Patient loadPatient(String patientID, boolean withInstances) throws IOException {
+		Patient header = (Patient)patientIndex.get(patientID);
+		if (header == null) return null;
+		Patient patient = header.getHeader();
+		for (Map.Entry<String,Long> e : patient.getStudyIDs().entrySet()) {
+			long id = e.getValue().longValue();
+			Study study = ((Study)recman.fetch(id)).getHeader();
+			study.setID(id);
+			if (withInstances) study.setInstances( getInstances(id, study.getNumberOfInstances()) );
+			patient.addStudy(e.getKey(), study);
+		}
+		return patient;
+	}
+	
+	//Populate a new status index from the patientIndex.
+	//This is done once, when an index created before the
+	//status index existed is first opened.
+	private void buildStatusIndex() throws IOException {
+		FastIterator fit = patientIndex.values();
+		Patient p;
+		int n = 0;
+		while ( (p=(Patient)fit.next()) != null) {
+			statusIndex.put(p);
+			n++;
+		}
+		commit();
+		logger.info("Status index built for "+n+" patient"+((n!=1)?"s":""));
+	}
+	
+	/**
+	 * Commit all pending updates, including the Tracker position.
+	 */
+	public synchronized void commit() {
+		try { 
+			long startTime = System.nanoTime();
+			syncFiles();
+			Tracker t = new Tracker(tracker.baseDir);
+			t.fileID = getFirstActiveSlot();
+			recman.update(trackerID, t);
+			recman.commit();
+			metrics.commit.record(System.nanoTime() - startTime);
+			uncommitted = 0;
+			lastCommitTime = System.currentTimeMillis();
+		}
+		catch (Exception ex) { logger.warn("Commit failed", ex); }
+	}
+	
+	/**
+	 * Specify whether the files of the instances added in a batch are
+	 * forced to the disk before the batch is committed.
+	 * @param syncOnCommit true if the files are to be forced at commit.
+	 */
+	public synchronized void setSyncOnCommit(boolean syncOnCommit) {
+		this.syncOnCommit = syncOnCommit;
+	}
+	
+	//Force the files of the current batch, and the directories
+	//containing them, so that no committed entry refers to a file
+	//that could be lost in a crash.
+	private void syncFiles() {
+		if (unsynced.isEmpty()) return;
+		HashSet<File> dirs = new HashSet<File>();
+		for (File file : unsynced) {
+			sync(file);
+			dirs.add(file.getParentFile());
+		}
+		for (File dir : dirs) sync(dir);
+		unsynced.clear();
+	}
+	
+	/**
+	 * Force the contents of a file or directory to the disk.
+	 * Failures are logged; directories cannot be forced on some platforms.
+	 * @param file the file or directory.
+	 */
+	public static void sync(File file) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			channel.force(true);
+		}
+		catch (Exception ex) {
+			if (!file.isDirectory()) logger.warn("Unable to sync "+file, ex);
+		}
+		finally {
+			try { if (channel != null) channel.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+	
+	/**
+	 * Commit the current batch if it has been open for
+	 * longer than the commitInterval.
+	 */
+	public synchronized void flush() {
+		if ((uncommitted > 0) && commitIsDue()) commit();
+	}
+	
+	private boolean commitIsDue() {
+		return (System.currentTimeMillis() - lastCommitTime) >= commitInterval;
+	}
+	
+	/**
+	 * Get the number of instances added since the last commit.
+	 * @return the number of uncommitted instances.
+	 */
+	public synchronized int getUncommitted() {
+		return uncommitted;
+	}
+	
+	/**
+	 * Commit and close the index.
+	 */
+	public synchronized void close() {
+		try {
+			commit();
+			recman.close();
+		}
+		catch (Exception ex) { logger.warn("Unable to close the index", ex); }
+	}
+	
+	//======================
+	//    Store slots
+	//======================
+	
+	/**
+	 * Get the Tracker that allocates the store slots.
+	 * @return the Tracker.
+	 */
+	public Tracker getTracker() {
+		return tracker;
+	}
+	
+	/**
+	 * Allocate the next store slot. The slot remains in flight,
+	 * holding back the committed Tracker position, until it
+	 * is released.
+	 * @return the ID of the slot.
+	 */
+	public synchronized long allocate() {
+		long fileID = tracker.getNextFileID();
+		slotLimit.reserve(fileID);
+		inFlight.add(fileID);
+		return fileID;
+	}
+	
+	/**
+	 * Release a store slot after its instance has been
+	 * indexed or its store attempt has failed.
+	 * @param fileID the ID of the slot.
+	 */
+	public synchronized void release(long fileID) {
+		inFlight.remove(fileID);
+	}
+	
+	/**
+	 * Get the lowest slot that is in flight or has not yet been allocated.
+	 * Every slot below it has either been indexed or abandoned.
+	 * @return the ID of the first active slot.
+	 */
+	public synchronized long getFirstActiveSlot() {
+		return inFlight.isEmpty() ? tracker.fileID : inFlight.first().longValue();
+	}
+	
+	/**
+	 * Get the ID of the next slot to be allocated.
+	 * @return the ID of the next slot.
+	 */
+	public synchronized long getNextFileID() {
+		return tracker.fileID;
+	}
+	
+	/**
+	 * Advance the Tracker so that the next slot to be
+	 * allocated is at least the specified slot.
+	 * @param fileID the ID of the slot.
+	 */
+	public synchronized void skipTo(long fileID) {
+		if (fileID > tracker.fileID) tracker.fileID = fileID;
+		if (fileID > 0) slotLimit.reserve(fileID - 1);
+	}
+	
+	/**
+	 * Get the persistent upper bound on the slots that have been allocated.
+	 * @return the slot above the highest slot that may have been allocated,
+	 * or -1 if it is unknown.
+	 */
+	public synchronized long getSlotLimit() {
+		return slotLimit.get();
+	}
+	
+	//======================
+	//    Instances
+	//======================
+	
+	/**
+	 * Get the Instance record corresponding to a UID.
+	 * @param uid the SOPInstanceUID.
+	 * @return the Instance, or null if no object with the UID is stored.
+	 */
+	public synchronized Instance getInstance(String uid) {
+		try { return toInstance( uidIndex.find(CompactUID.encode(uid)) ); }
+		catch (Exception noFile) {
+			logger.info("Unable to find UID ("+uid+") in the uidIndex.");
+			return null;
+		}
+	}
+	
+	//Convert a uidIndex value to an Instance.
+	private Instance toInstance(Object value) {
+		return (value != null) ? Instance.fromBytes((byte[])value, tracker) : null;
+	}
+	
+	/**
+	 * Add an instance to the index, committing if the current batch is complete.
+	 * @param patientID the PatientID.
+	 * @param studyInstanceUID the StudyInstanceUID.
+	 * @param studyDate the StudyDate.
+	 * @param modality the Modality.
+	 * @param uid the SOPInstanceUID.
+	 * @param instance the Instance record.
+	 */
+	public synchronized void addInstance(String patientID, 
+										 String studyInstanceUID, 
+										 String studyDate, 
+										 String modality,
+										 String uid, 
+										 Instance instance) throws IOException {
+		putInstance(patientID, studyInstanceUID, studyDate, modality, uid, instance);
+		uncommitted++;
+		if ((uncommitted >= commitBatchSize) || commitIsDue()) commit();
+	}
+	
+	/**
+	 * Add a group of instances to the index and commit.
+	 * This is used to load the instances found in the store directory.
+	 * @param instances the instances.
+	 */
+	public synchronized void addInstances(List<StoredInstance> instances) throws IOException {
+		for (StoredInstance si : instances) {
+			putInstance(si.patientID, si.studyInstanceUID, si.studyDate, si.modality, si.uid, si.instance);
+		}
+		commit();
+	}
+	
+	//Add an instance to the index without committing.
+	private void putInstance(String patientID, 
+							 String studyInstanceUID, 
+							 String studyDate, 
+							 String modality,
+							 String uid, 
+							 Instance instance) throws IOException {
+		Patient pt = loadPatient(patientID, false);
+		if (pt == null) pt = new Patient(patientID);
+		pt.setLastModifiedTime();
+		Study st = pt.getStudy(studyInstanceUID);
+		if (st == null) {
+			st = new Study(studyInstanceUID, studyDate, modality).getHeader();
+			st.setID( recman.insert(st) );
+			pt.addStudy(studyInstanceUID, st);
+		}
+		byte[] uidKey = CompactUID.encode(uid);
+		byte[] key = getMemberKey(st.getID(), uidKey);
+		if (memberIndex.find(key) == null) {
+			memberIndex.insert(key, present, false);
+			st.setNumberOfInstances(st.getNumberOfInstances() + 1);
+			recman.update(st.getID(), st);
+		}
+		savePatient(pt);
+		uidIndex.insert(uidKey, instance.getBytes(), true);
+		touchInstance(uid);
+		if (syncOnCommit && (instance.getFile() != null)) unsynced.add(instance.getFile());
+	}
+	
+	/**
+	 * Record that an instance has been accepted by the export destination,
+	 * so that a retry of the export does not send it again. The change is
+	 * committed with the current batch; if it is lost in a crash, the
+	 * instance is simply sent again.
+	 * @param uid the SOPInstanceUID.
+	 * @param digest the digest of the exported file, which is recorded
+	 * if the Instance does not already have one.
+	 */
+	public synchronized void setExported(String uid, String digest) {
+		try {
+			byte[] key = CompactUID.encode(uid);
+			Instance instance = toInstance( uidIndex.find(key) );
+			if ((instance != null) && !instance.isExported()) {
+				if (!instance.hasDigest() && (digest != null)) {
+					instance = new Instance(instance.getFileID(), instance.getFile(), digest);
+				}
+				instance.setExported(true);
+				uidIndex.insert(key, instance.getBytes(), true);
+				touchInstance(uid);
+				uncommitted++;
+				if ((uncommitted >= commitBatchSize) || commitIsDue()) commit();
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to record the export of "+uid, ex); }
+	}
+	
+	//======================
+	//    Patients
+	//======================
+	
+	//Store a Patient header in the patientIndex and move the patient
+	//to the status index partition for its current Status.
+	//The Study headers are not written.
+	//This does not commit the changes.
+	private void savePatient(Patient patient) throws IOException {
+		patientIndex.put(patient.getPatientID(), patient.getHeader());
+		statusIndex.put(patient);
+		touchPatient(patient.getPatientID());
+	}
+	
+	//Record changes made while a compaction is in progress,
+	//so that the compactor can copy the changed entries again.
+	private void touchPatient(String patientID) {
+		if (compactor != null) compactor.dirtyPatients.add(patientID);
+	}
+	
+	private void touchInstance(String uid) {
+		if (compactor != null) compactor.dirtyInstances.add(uid);
+	}
+	
+	/**
+	 * Get a Patient by PatientID, with its Study headers but
+	 * without the instance UIDs of its studies.
+	 * @param patientID the PatientID.
+	 * @return the Patient, or null if the patient is not in the index.
+	 */
+	public synchronized Patient getPatient(String patientID) {
+		return getPatient(patientID, false);
+	}
+	
+	/**
+	 * Get a Patient by PatientID.
+	 * @param patientID the PatientID.
+	 * @param withInstances true if the instance UIDs of the
+	 * patient's studies are to be loaded.
+	 * @return the Patient, or null if the patient is not in the index.
+	 */
+	public synchronized Patient getPatient(String patientID, boolean withInstances) {
+		try { return loadPatient(patientID, withInstances); }
+		catch (Exception ex) { logger.warn("Unable to fetch patient "+patientID, ex); }
+		return null;
+	}
+	
+	/**
+	 * Store a Patient header and commit.
+	 * @param patient the Patient.
+	 */
+	public synchronized void putPatient(Patient patient) {
+		try { 
+			savePatient(patient); 
+			commit();
+		}
+		catch (Exception ex) { logger.warn("Unable to store patient "+patient.getPatientID(), ex); }
+	}
+	
+	/**
+	 * Queue a Patient for export and commit.
+	 * @param patientID the PatientID.
+	 * @param comment the export comment.
+	 * @param submissionID the import event ID for the export.
+	 * @return true if the patient was queued; false if the patient is not in the index.
+	 */
+	public synchronized boolean queue(String patientID, String comment, String submissionID) throws IOException {
+		Patient patient = loadPatient(patientID, false);
+		if (patient == null) return false;
+		patient.setComment(comment);
+		patient.setSubmissionID(submissionID);
+		patient.setStatus(Status.PENDING);
+		savePatient(patient);
+		commit();
+		return true;
+	}
+	
+	/**
+	 * Set the Status of a Patient and commit. The current record
+	 * is updated, so instances added since the caller obtained
+	 * its copy of the Patient are preserved.
+	 * @param patientID the PatientID.
+	 * @param status the new Status.
+	 */
+	public synchronized void setStatus(String patientID, Status status) {
+		try {
+			Patient patient = loadPatient(patientID, false);
+			if (patient != null) {
+				patient.setStatus(status);
+				savePatient(patient);
+				commit();
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to set the status of "+patientID, ex); }
+	}
+	
+	/**
+	 * Reset the Status of all failed Patients to Status.NONE and commit.
+	 */
+	public synchronized void resetFailures() {
+		try {
+			for (String ptid : statusIndex.getPatientIDs(StatusIndex.FAILED)) {
+				Patient p = loadPatient(ptid, false);
+				if (p != null) {
+					p.setStatus(Status.NONE);
+					savePatient(p);
+				}
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to reset the failed patients", ex); }
+		commit();
+	}
+	
+	/**
+	 * Remove the instances of an exported Patient from the index and commit.
+	 * Only the instances in the supplied Patient are removed. If other
+	 * instances have been added to the patient since the caller obtained
+	 * its copy, the patient remains in the index with Status.NONE so that
+	 * the new instances can be exported; otherwise the patient is removed.
+	 * @param patient the Patient that was exported, as obtained from
+	 * getPatient(patientID, true).
+	 * @return the removed instances, whose files the caller must delete.
+	 */
+	public synchronized List<Instance> deletePatient(Patient patient) {
+		LinkedList<Instance> instances = new LinkedList<Instance>();
+		String ptid = patient.getPatientID();
+		try {
+			Patient current = loadPatient(ptid, false);
+			for (Study study : patient.getStudies()) {
+				String studyInstanceUID = study.getStudyInstanceUID();
+				long id = study.getID();
+				int nRemoved = 0;
+				for (String uid : study.getInstanceUIDs()) {
+					byte[] uidKey = CompactUID.encode(uid);
+					Instance instance = toInstance( uidIndex.find(uidKey) );
+					if (instance != null) {
+						uidIndex.remove(uidKey);
+						instances.add(instance);
+						touchInstance(uid);
+						if (keepTombstones && instance.isExported() && instance.hasDigest()) {
+							tombstones.insert(uidKey, getTombstone(System.currentTimeMillis(), instance), true);
+						}
+					}
+					byte[] key = getMemberKey(id, uidKey);
+					if ((id != 0) && (memberIndex.find(key) != null)) {
+						memberIndex.remove(key);
+						nRemoved++;
+					}
+				}
+				Study currentStudy = (current != null) ? current.getStudy(studyInstanceUID) : null;
+				if (currentStudy != null) {
+					int nRemaining = currentStudy.getNumberOfInstances() - nRemoved;
+					if (nRemaining <= 0) {
+						recman.delete(currentStudy.getID());
+						current.removeStudy(studyInstanceUID);
+					}
+					else {
+						currentStudy.setNumberOfInstances(nRemaining);
+						recman.update(currentStudy.getID(), currentStudy);
+					}
+				}
+			}
+			if ((current == null) || (current.getNumberOfStudies() == 0)) {
+				patientIndex.remove(ptid);
+				statusIndex.remove(ptid);
+				touchPatient(ptid);
+			}
+			else {
+				current.setStatus(Status.NONE);
+				savePatient(current);
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to delete patient "+ptid, ex); }
+		commit();
+		return instances;
+	}
+	
+	/**
+	 * Get the PatientIDs in a status index partition.
+	 * @param set the partition (StatusIndex.NONE, PENDING, or FAILED)
+	 * @return the PatientIDs in the partition, in PatientID order.
+	 */
+	public synchronized List<String> getPatientIDs(int set) {
+		try { return statusIndex.getPatientIDs(set); }
+		catch (Exception ex) {
+			logger.warn("Unable to get list of patients", ex);
+			return new LinkedList<String>();
+		}
+	}
+	
+	/**
+	 * Get a page of Patients, with their Study headers, from a status
+	 * index partition. To limit the time for which the index is held,
+	 * at most maxScan entries are examined; a page can therefore
+	 * contain fewer than the requested number of Patients even
+	 * though more remain. The cursor of the returned page is null
+	 * only when the partition has been exhausted.
+	 * @param query the query.
+	 * @param maxScan the maximum number of entries to examine.
+	 * @return the page.
+	 */
+	public synchronized PatientPage getPatients(PatientQuery query, int maxScan) {
+		LinkedList<Patient> patients = new LinkedList<Patient>();
+		String prefix = (query.prefix != null) ? query.prefix : "";
+		String cursor = query.cursor;
+		String last = null;
+		boolean exhausted = false;
+		try {
+			String start = cursor;
+			if (start == null) {
+				if (!query.descending) start = prefix;
+				else if (!prefix.equals("")) start = prefix + "\uffff";
+			}
+			TupleBrowser browser = statusIndex.browse(query.set, start);
+			Tuple tuple = new Tuple();
+			int nScanned = 0;
+			while ((patients.size() < query.limit) && (nScanned < maxScan)) {
+				boolean found = query.descending ? browser.getPrevious(tuple) : browser.getNext(tuple);
+				if (!found) { exhausted = true; break; }
+				String ptid = (String)tuple.getKey();
+				if (ptid.equals(cursor)) continue;
+				if (!ptid.startsWith(prefix)) { exhausted = true; break; }
+				nScanned++;
+				last = ptid;
+				Patient p = loadPatient(ptid, false);
+				if ((p != null) && query.matches(p)) patients.add(p);
+			}
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to list patients", ex);
+			exhausted = true;
+		}
+		return new PatientPage(patients, exhausted ? null : ((last != null) ? last : cursor));
+	}
+	
+	//======================
+	//    Tombstones
+	//======================
+	
+	/**
+	 * Specify whether tombstones are recorded for the exported instances
+	 * that are removed from the index.
+	 * @param keepTombstones true if tombstones are to be recorded.
+	 */
+	public synchronized void setKeepTombstones(boolean keepTombstones) {
+		this.keepTombstones = keepTombstones;
+	}
+	
+	//Get a tombstone: the index record of the exported Instance
+	//with the time in place of the store slot ID, so that the
+	//digest can be decoded by Instance.fromBytes.
+	static byte[] getTombstone(long time, Instance instance) {
+		byte[] record = instance.getBytes();
+		byte[] bytes = new byte[record.length];
+		for (int i=0; i<8; i++) bytes[i] = (byte)(time >>> (56 - 8*i));
+		System.arraycopy(record, 8, bytes, 8, record.length - 8);
+		return bytes;
+	}
+	
+	static long getTombstoneTime(byte[] bytes) {
+		long time = 0;
+		for (int i=0; i<8; i++) time = (time << 8) | (bytes[i] & 0xFF);
+		return time;
+	}
+	
+	/**
+	 * Get the digest of an exported instance that has been removed from the index.
+	 * @param uid the SOPInstanceUID.
+	 * @return the digest, or null if there is no tombstone for the instance.
+	 */
+	public synchronized String getExportedDigest(String uid) {
+		try {
+			byte[] bytes = (byte[])tombstones.find(CompactUID.encode(uid));
+			return (bytes != null) ? Instance.fromBytes(bytes, tracker).getDigest() : null;
+		}
+		catch (Exception ex) { return null; }
+	}
+	
+	/**
+	 * Remove the tombstones that were recorded before a specified time.
+	 * The tombstones are scanned in batches, committing after each batch,
+	 * so that the index is held only briefly.
+	 * @param time the time before which tombstones are removed.
+	 * @return the number of tombstones removed.
+	 */
+	public int removeTombstones(long time) {
+		int n = 0;
+		byte[] cursor = null;
+		ByteArrayComparator comparator = new ByteArrayComparator();
+		do {
+			synchronized (this) {
+				try {
+					TupleBrowser browser = (cursor != null) ? tombstones.browse(cursor) : tombstones.browse();
+					Tuple tuple = new Tuple();
+					LinkedList<byte[]> keys = new LinkedList<byte[]>();
+					byte[] last = null;
+					int scanned = 0;
+					while ((scanned < 1000) && browser.getNext(tuple)) {
+						byte[] key = (byte[])tuple.getKey();
+						if ((cursor != null) && (comparator.compare(key, cursor) <= 0)) continue;
+						if (getTombstoneTime((byte[])tuple.getValue()) < time) keys.add(key);
+						last = key;
+						scanned++;
+					}
+					for (byte[] key : keys) {
+						tombstones.remove(key);
+						touchInstance(CompactUID.decode(key));
+					}
+					n += keys.size();
+					if (keys.size() > 0) commit();
+					cursor = (scanned < 1000) ? null : last;
+				}
+				catch (Exception ex) {
+					logger.warn("Unable to remove tombstones", ex);
+					cursor = null;
+				}
+			}
+		} while (cursor != null);
+		return n;
+	}
+	
+	//======================
+	//    Compaction
+	//======================
+	
+	/**
+	 * Start an online compaction of the index.
+	 * @return the compactor, or null if a compaction is already in progress.
+	 */
+	public synchronized IndexTask compact() {
+		if (compactor != null) return null;
+		compactor = new IndexCompactor(this, IndexCompactor.getCompactFile(indexFile));
+		compactor.start();
+		return compactor;
+	}
+	
+	/**
+	 * Get the compactor that is in progress.
+	 * @return the compactor, or null if no compaction is in progress.
+	 */
+	public synchronized IndexCompactor getCompactor() {
+		return compactor;
+	}
+	
+	/**
+	 * Get the PatientIDs of all the patients in the index.
+	 * @return the PatientIDs, in no particular order.
+	 */
+	public synchronized List<String> getAllPatientIDs() throws IOException {
+		LinkedList<String> ptids = new LinkedList<String>();
+		FastIterator fit = patientIndex.keys();
+		Object key;
+		while ( (key=fit.next()) != null ) ptids.add( (String)key );
+		return ptids;
+	}
+	
+	//Stop tracking changes for a compaction that has ended.
+	synchronized void endCompaction(IndexCompactor c) {
+		if (compactor == c) compactor = null;
+	}
+	
+	//Replace the index with the compacted copy and reopen it.
+	//The compactor has copied all the entries and holds the lock.
+	//If the files cannot be replaced, the original index is reopened.
+	synchronized void swap(File compactFile) throws IOException {
+		recman.commit();
+		recman.close();
+		try { IndexCompactor.replace(indexFile, compactFile); }
+		finally {
+			IndexCompactor.recover(indexFile);
+			recman = JdbmUtil.getRecordManager( indexFile.getPath() );
+			load();
+			compactor = null;
+			commit();
+		}
+	}
+	
+	//======================
+	//    Export jobs
+	//======================
+	
+	/**
+	 * Create an export job and commit.
+	 * @param patientIDs the PatientIDs of the patients to export.
+	 * @param comment the export comment.
+	 * @return the job.
+	 */
+	public synchronized ExportJob addJob(String[] patientIDs, String comment) throws IOException {
+		long id = ((Long)recman.fetch(jobCounterID)).longValue() + 1;
+		recman.update(jobCounterID, Long.valueOf(id));
+		ExportJob job = new ExportJob(id, patientIDs, comment);
+		jobIndex.insert(Long.valueOf(id), job, true);
+		commit();
+		return job.copy();
+	}
+	
+	/**
+	 * Get an export job.
+	 * @param id the ID of the job.
+	 * @return the job, or null if the job is not in the index.
+	 */
+	public synchronized ExportJob getJob(long id) {
+		try {
+			ExportJob job = (ExportJob)jobIndex.find(Long.valueOf(id));
+			return (job != null) ? job.copy() : null;
+		}
+		catch (Exception ex) { return null; }
+	}
+	
+	/**
+	 * Store the progress of an export job and commit.
+	 * @param job the job.
+	 */
+	public synchronized void putJob(ExportJob job) {
+		try {
+			jobIndex.insert(Long.valueOf(job.getID()), job.copy(), true);
+			commit();
+		}
+		catch (Exception ex) { logger.warn("Unable to store export job "+job.getID(), ex); }
+	}
+	
+	/**
+	 * Get the export jobs that have not been completed, in the order of submission.
+	 * @return the jobs.
+	 */
+	public synchronized List<ExportJob> getPendingJobs() {
+		LinkedList<ExportJob> jobs = new LinkedList<ExportJob>();
+		try {
+			TupleBrowser browser = jobIndex.browse();
+			Tuple tuple = new Tuple();
+			while (browser.getNext(tuple)) {
+				ExportJob job = (ExportJob)tuple.getValue();
+				if (!job.isDone()) jobs.add(job.copy());
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to list the export jobs", ex); }
+		return jobs;
+	}
+	
+	/**
+	 * Remove the export jobs that were completed before a specified time, and commit.
+	 * @param time the time before which completed jobs are removed.
+	 */
+	public synchronized void removeJobs(long time) {
+		try {
+			LinkedList<Long> ids = new LinkedList<Long>();
+			TupleBrowser browser = jobIndex.browse();
+			Tuple tuple = new Tuple();
+			while (browser.getNext(tuple)) {
+				ExportJob job = (ExportJob)tuple.getValue();
+				if (job.isDone() && (job.getCompletedTime() < time)) ids.add((Long)tuple.getKey());
+			}
+			for (Long id : ids) jobIndex.remove(id);
+			if (ids.size() > 0) commit();
+		}
+		catch (Exception ex) { logger.warn("Unable to remove the completed export jobs", ex); }
+	}
+	
+	/**
+	 * Get the totals for a status index partition.
+	 * @param set the partition (StatusIndex.NONE, PENDING, or FAILED)
+	 * @return an array containing the numbers of patients,
+	 * studies, and instances in the partition.
+	 */
+	public synchronized int[] getTotals(int set) {
+		try { return statusIndex.getTotals(set); }
+		catch (Exception ex) { return new int[3]; }
+	}
+	
+}
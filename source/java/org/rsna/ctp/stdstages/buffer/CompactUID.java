@@ -0,0 +1,103 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact binary encoding of DICOM UIDs.
+ * <p>
+ * A conforming UID contains only digits and periods, so each character is
+ * packed into four bits ('0'-'9' as 1-10 and '.' as 11), two characters
+ * per byte, with a zero nibble padding an odd length. A 64-character UID
+ * therefore occupies 32 bytes. Strings containing any other characters
+ * are stored as a 0xFF marker byte followed by their UTF-8 encoding.
+ */
+public class CompactUID {
+	
+	static final int period = 11;
+	static final byte raw = (byte)0xFF;
+	
+	/**
+	 * Encode a UID.
+	 * @param uid the UID.
+	 * @return the encoded bytes.
+	 */
+	public static byte[] encode(String uid) {
+		int n = uid.length();
+		if (!isPackable(uid)) {
+			byte[] utf8 = uid.getBytes(StandardCharsets.UTF_8);
+			byte[] bytes = new byte[utf8.length + 1];
+			bytes[0] = raw;
+			System.arraycopy(utf8, 0, bytes, 1, utf8.length);
+			return bytes;
+		}
+		byte[] bytes = new byte[(n + 1) / 2];
+		for (int i=0; i<n; i++) {
+			int nibble = getNibble(uid.charAt(i));
+			if ((i & 1) == 0) bytes[i >> 1] = (byte)(nibble << 4);
+			else bytes[i >> 1] |= (byte)nibble;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Decode a UID.
+	 * @param bytes the encoded UID.
+	 * @return the UID.
+	 */
+	public static String decode(byte[] bytes) {
+		return decode(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Decode a UID from part of an array.
+	 * @param bytes the array containing the encoded UID.
+	 * @param offset the index of the first byte of the encoded UID.
+	 * @param length the number of bytes in the encoded UID.
+	 * @return the UID.
+	 */
+	public static String decode(byte[] bytes, int offset, int length) {
+		if ((length > 0) && (bytes[offset] == raw)) {
+			return new String(bytes, offset + 1, length - 1, StandardCharsets.UTF_8);
+		}
+		char[] chars = new char[2 * length];
+		int n = 0;
+		for (int i=offset; i<offset+length; i++) {
+			int hi = (bytes[i] >> 4) & 0xF;
+			int lo = bytes[i] & 0xF;
+			if (hi == 0) break;
+			chars[n++] = getChar(hi);
+			if (lo == 0) break;
+			chars[n++] = getChar(lo);
+		}
+		return new String(chars, 0, n);
+	}
+	
+	/**
+	 * Compare two encoded UIDs for equality.
+	 * @param a the first encoded UID.
+	 * @param b the second encoded UID.
+	 * @return true if the encoded UIDs are equal.
+	 */
+	public static boolean equals(byte[] a, byte[] b) {
+		return Arrays.equals(a, b);
+	}
+	
+	private static boolean isPackable(String uid) {
+		int n = uid.length();
+		for (int i=0; i<n; i++) {
+			char c = uid.charAt(i);
+			if (((c < '0') || (c > '9')) && (c != '.')) return false;
+		}
+		return true;
+	}
+	
+	private static int getNibble(char c) {
+		return (c == '.') ? period : (c - '0' + 1);
+	}
+	
+	private static char getChar(int nibble) {
+		return (nibble == period) ? '.' : (char)('0' + nibble - 1);
+	}
+	
+}
@@ -0,0 +1,114 @@
+package org.rsna.ctp.stdstages.buffer;
+
+/**
+ * An adaptive limit on the number of concurrent requests to a server.
+ * <p>
+ * The limit is adjusted by additive increase and multiplicative decrease
+ * (AIMD): each successful request raises the limit by 1/limit, so the
+ * limit grows by about one for each round of requests, and each sign of
+ * overload halves it. A request is taken as a sign of overload if it
+ * fails without a response, receives a 429 or 5xx response, or takes
+ * longer than the latency target. The limit is decreased at most once
+ * per smoothed request time, so a burst of failures from requests that
+ * were already in flight counts as a single signal.
+ * <p>
+ * When the server supplies a Retry-After delay, or when the limit is
+ * already at its minimum, new requests are paused, which reduces the
+ * request rate below one request at a time.
+ */
+public class ConcurrencyLimiter {
+	
+	static final long maxPause = 5 * 60 * 1000;
+	
+	final int minLimit;
+	final int maxLimit;
+	final long latencyTarget;
+	double limit;
+	int inFlight = 0;
+	double smoothedTime = 0;
+	//nanoTime() values can be negative, so "never" is half the range ago
+	long lastDecrease = System.nanoTime() - Long.MAX_VALUE / 2;
+	long pauseUntil = 0;
+	long nOverloads = 0;
+	
+	/**
+	 * Create a limiter.
+	 * @param minLimit the minimum limit.
+	 * @param maxLimit the maximum (and initial) limit.
+	 * @param latencyTarget the request time (in ms) above which a request
+	 * is taken as a sign of overload, or 0 if latency is not to be used.
+	 */
+	public ConcurrencyLimiter(int minLimit, int maxLimit, long latencyTarget) {
+		this.minLimit = Math.max(minLimit, 1);
+		this.maxLimit = Math.max(maxLimit, this.minLimit);
+		this.latencyTarget = latencyTarget * 1000000L;
+		limit = this.maxLimit;
+	}
+	
+	/**
+	 * Wait until a request can be started within the current limit.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (now < pauseUntil) wait(pauseUntil - now);
+			else if (inFlight >= (int)limit) wait();
+			else break;
+		}
+		inFlight++;
+	}
+	
+	/**
+	 * Record the result of a request started with acquire().
+	 * @param responseCode the HTTP response code, or 0 if no response was received.
+	 * @param nanos the time taken by the request.
+	 * @param retryAfter the delay (in ms) requested by the server, or 0.
+	 */
+	public synchronized void release(int responseCode, long nanos, long retryAfter) {
+		inFlight--;
+		smoothedTime = (smoothedTime == 0) ? nanos : (0.875 * smoothedTime + 0.125 * nanos);
+		boolean overloaded = (responseCode == 0) 
+								|| (responseCode == 429) 
+								|| (responseCode >= 500)
+								|| ((latencyTarget > 0) && (nanos > latencyTarget));
+		long now = System.nanoTime();
+		if (overloaded) {
+			nOverloads++;
+			if ((now - lastDecrease) > smoothedTime) {
+				if ((int)limit <= minLimit) pause((long)(smoothedTime / 1000000L));
+				limit = Math.max(minLimit, limit / 2);
+				lastDecrease = now;
+			}
+			if (retryAfter > 0) pause(retryAfter);
+		}
+		else if ((responseCode >= 200) && (responseCode < 300)) {
+			limit = Math.min(maxLimit, limit + 1.0 / limit);
+		}
+		notifyAll();
+	}
+	
+	private void pause(long ms) {
+		ms = Math.min(Math.max(ms, 0), maxPause);
+		pauseUntil = Math.max(pauseUntil, System.currentTimeMillis() + ms);
+	}
+	
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+	
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	
+	public synchronized void appendTo(StringBuilder sb) {
+		sb.append("\"concurrency\":{");
+		sb.append("\"limit\":"+(int)limit);
+		sb.append(",\"max\":"+maxLimit);
+		sb.append(",\"inFlight\":"+inFlight);
+		sb.append(",\"overloads\":"+nOverloads);
+		sb.append(",\"paused\":"+(System.currentTimeMillis() < pauseUntil));
+		sb.append("}");
+	}
+	
+}
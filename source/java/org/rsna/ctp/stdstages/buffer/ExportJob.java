@@ -0,0 +1,110 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.Serializable;
+
+/**
+ * A request to export a set of patients from an IndexedDicomBuffer.
+ * <p>
+ * Jobs are stored in the index when they are submitted and are processed
+ * in order by the stage's job thread, which obtains an import event ID
+ * for each patient and queues the patient for export. The position of
+ * the next patient to be queued is stored after each patient, so a job
+ * that is interrupted by a restart resumes where it stopped.
+ */
+public class ExportJob implements Serializable {
+	static final long serialVersionUID = 1L;
+	
+	public static final String QUEUED = "queued";
+	public static final String RUNNING = "running";
+	public static final String DONE = "done";
+	
+	long id;
+	String[] patientIDs;
+	String comment;
+	String state = QUEUED;
+	int next = 0;
+	int nQueued = 0;
+	int nFailed = 0;
+	long submittedTime;
+	long completedTime = 0;
+	
+	public ExportJob(long id, String[] patientIDs, String comment) {
+		this.id = id;
+		this.patientIDs = patientIDs;
+		this.comment = comment;
+		submittedTime = System.currentTimeMillis();
+		if (patientIDs.length == 0) {
+			state = DONE;
+			completedTime = submittedTime;
+		}
+	}
+	
+	public synchronized ExportJob copy() {
+		ExportJob job = new ExportJob(id, patientIDs, comment);
+		job.state = state;
+		job.next = next;
+		job.nQueued = nQueued;
+		job.nFailed = nFailed;
+		job.submittedTime = submittedTime;
+		job.completedTime = completedTime;
+		return job;
+	}
+	
+	public long getID() {
+		return id;
+	}
+	
+	public String getComment() {
+		return comment;
+	}
+	
+	public synchronized String getState() {
+		return state;
+	}
+	
+	public synchronized boolean isDone() {
+		return state.equals(DONE);
+	}
+	
+	public synchronized long getCompletedTime() {
+		return completedTime;
+	}
+	
+	/**
+	 * Get the PatientID of the next patient to be queued and mark the job running.
+	 * @return the PatientID, or null if all the patients have been processed.
+	 */
+	public synchronized String getNextPatientID() {
+		if (next >= patientIDs.length) return null;
+		state = RUNNING;
+		return patientIDs[next];
+	}
+	
+	/**
+	 * Record the result for the current patient and advance to the next one.
+	 * The job is done when all the patients have been processed.
+	 * @param queued true if the patient was queued for export.
+	 */
+	public synchronized void advance(boolean queued) {
+		if (queued) nQueued++;
+		else nFailed++;
+		next++;
+		if (next >= patientIDs.length) {
+			state = DONE;
+			completedTime = System.currentTimeMillis();
+		}
+	}
+	
+	public synchronized void appendTo(StringBuilder sb) {
+		sb.append("{\"job\":"+id);
+		sb.append(",\"state\":\""+state+"\"");
+		sb.append(",\"comment\":"+Patient.quote(comment));
+		sb.append(",\"patients\":"+patientIDs.length);
+		sb.append(",\"queued\":"+nQueued);
+		sb.append(",\"failed\":"+nFailed);
+		sb.append(",\"submitted\":"+submittedTime);
+		sb.append(",\"completed\":"+completedTime);
+		sb.append("}");
+	}
+	
+}
@@ -0,0 +1,131 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+/**
+ * The queue of patients waiting for export.
+ * <p>
+ * Patients are grouped by submission (the export comment), and the
+ * submissions are served in rotation, so a large submission cannot
+ * delay the patients of a small one. Within a submission, patients
+ * are taken in the order in which they were queued, or, if the
+ * smallest-first policy is selected, in order of increasing numbers
+ * of instances.
+ * <p>
+ * The queue is held in memory. It is filled from the index when
+ * the stage starts and by the threads that queue patients, and
+ * take() blocks until a patient is available, so the export
+ * thread does not poll the index.
+ */
+public class ExportQueue {
+	
+	public static final String FIFO = "fifo";
+	public static final String SMALLEST = "smallest";
+	
+	final Comparator<Entry> order;
+	final HashMap<String,PriorityQueue<Entry>> submissions = new HashMap<String,PriorityQueue<Entry>>();
+	final LinkedList<String> rotation = new LinkedList<String>();
+	final HashSet<String> queued = new HashSet<String>();
+	long sequence = 0;
+	
+	/**
+	 * Create an empty queue.
+	 * @param policy FIFO or SMALLEST.
+	 */
+	public ExportQueue(String policy) {
+		if (SMALLEST.equals(policy)) order = bySize;
+		else order = bySequence;
+	}
+	
+	/**
+	 * Add a patient to the queue, if it is not already queued,
+	 * and wake the thread waiting in take().
+	 * @param patientID the PatientID.
+	 * @param submission the key of the submission to which the patient belongs.
+	 * @param size the number of instances of the patient.
+	 */
+	public synchronized void add(String patientID, String submission, int size) {
+		if (!queued.add(patientID)) return;
+		if (submission == null) submission = "";
+		PriorityQueue<Entry> pq = submissions.get(submission);
+		if (pq == null) {
+			pq = new PriorityQueue<Entry>(11, order);
+			submissions.put(submission, pq);
+			rotation.add(submission);
+		}
+		pq.add( new Entry(patientID, size, sequence++) );
+		notifyAll();
+	}
+	
+	/**
+	 * Add a Patient to the queue.
+	 * @param patient the Patient, with its Study headers.
+	 */
+	public void add(Patient patient) {
+		int size = 0;
+		for (Study study : patient.getStudies()) size += study.getNumberOfInstances();
+		add(patient.getPatientID(), patient.getComment(), size);
+	}
+	
+	/**
+	 * Take the next patient, waiting until one is available.
+	 * @return the PatientID.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public synchronized String take() throws InterruptedException {
+		while (rotation.isEmpty()) wait();
+		String submission = rotation.removeFirst();
+		PriorityQueue<Entry> pq = submissions.get(submission);
+		Entry entry = pq.poll();
+		if (pq.isEmpty()) submissions.remove(submission);
+		else rotation.addLast(submission);
+		queued.remove(entry.patientID);
+		return entry.patientID;
+	}
+	
+	/**
+	 * Get the number of patients in the queue.
+	 * @return the number of queued patients.
+	 */
+	public synchronized int size() {
+		return queued.size();
+	}
+	
+	/**
+	 * Get the number of submissions with patients in the queue.
+	 * @return the number of submissions.
+	 */
+	public synchronized int getSubmissions() {
+		return rotation.size();
+	}
+	
+	static class Entry {
+		final String patientID;
+		final int size;
+		final long sequence;
+		
+		Entry(String patientID, int size, long sequence) {
+			this.patientID = patientID;
+			this.size = size;
+			this.sequence = sequence;
+		}
+	}
+	
+	static final Comparator<Entry> bySequence = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return Long.compare(a.sequence, b.sequence);
+		}
+	};
+	
+	static final Comparator<Entry> bySize = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			int c = Integer.compare(a.size, b.size);
+			return (c != 0) ? c : Long.compare(a.sequence, b.sequence);
+		}
+	};
+	
+}
@@ -0,0 +1,402 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.htree.HTree;
+import jdbm.helper.ByteArrayComparator;
+import jdbm.helper.ByteArraySerializer;
+import jdbm.helper.LongComparator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import org.apache.log4j.Logger;
+import org.rsna.util.JdbmUtil;
+
+/**
+ * A Thread to compact a BufferIndex while it is in use.
+ * <p>
+ * JDBM does not reclaim the space of deleted and rewritten records
+ * well, so the index file grows far beyond the size of its live data.
+ * The compactor copies the live entries into a new file and then
+ * replaces the index file with the copy.
+ * <p>
+ * The entries are copied in small batches, each under the lock of the
+ * index, so ingest is blocked only for the duration of one batch. The
+ * index records the patients and instances that change while the copy
+ * is in progress, and the compactor copies them again until few remain.
+ * The remaining changes are copied and the files are swapped in a
+ * single final critical section.
+ */
+public class IndexCompactor extends IndexTask {
+
+	static final Logger logger = Logger.getLogger(IndexCompactor.class);
+
+	static final int patientBatchSize = 100;
+	static final int instanceBatchSize = 1000;
+	static final int maxFinalChanges = 200;
+	static final int maxRounds = 100;
+
+	final BufferIndex index;
+	final File compactFile;
+
+	//The entries changed in the index during the compaction.
+	//These are accessed only under the lock of the index.
+	final HashSet<String> dirtyPatients = new HashSet<String>();
+	final HashSet<String> dirtyInstances = new HashSet<String>();
+
+	RecordManager recman = null;
+	HTree patientIndex = null;
+	BTree uidIndex = null;
+	BTree memberIndex = null;
+	BTree tombstones = null;
+	StatusIndex statusIndex = null;
+
+	volatile String phase = "starting";
+	volatile int nPatients = 0;
+	volatile int nPatientsCopied = 0;
+	volatile long nEntriesCopied = 0;
+	volatile int nRounds = 0;
+	volatile long oldSize = 0;
+	volatile long newSize = 0;
+	volatile long startTime = 0;
+	volatile long endTime = 0;
+	volatile String error = null;
+
+	/**
+	 * Create a compactor.
+	 * @param index the index to compact.
+	 * @param compactFile the base name of the files of the copy.
+	 */
+	public IndexCompactor(BufferIndex index, File compactFile) {
+		super("IndexCompactor");
+		this.index = index;
+		this.compactFile = compactFile;
+	}
+
+	/**
+	 * Copy the index and swap in the copy.
+	 */
+	public void run() {
+		startTime = System.currentTimeMillis();
+		oldSize = getSize(index.indexFile);
+		try {
+			delete(compactFile);
+			recman = JdbmUtil.getRecordManager( compactFile.getPath() );
+			patientIndex = JdbmUtil.getHTree( recman, "patientIndex" );
+			uidIndex = createBTree("uidFiles");
+			memberIndex = createBTree("members");
+			tombstones = createBTree("exported");
+			statusIndex = new StatusIndex(recman);
+			recman.commit();
+
+			phase = "patients";
+			List<String> ptids = index.getAllPatientIDs();
+			nPatients = ptids.size();
+			Iterator<String> pit = ptids.iterator();
+			while (pit.hasNext()) {
+				checkInterrupt();
+				synchronized (index) {
+					for (int i=0; (i<patientBatchSize) && pit.hasNext(); i++) {
+						copyPatient(pit.next());
+						nPatientsCopied++;
+					}
+				}
+				recman.commit();
+			}
+
+			phase = "instances";
+			copyEntries(index.uidIndex, uidIndex);
+			phase = "tombstones";
+			copyEntries(index.tombstones, tombstones);
+
+			phase = "changes";
+			while (true) {
+				checkInterrupt();
+				synchronized (index) {
+					int changes = dirtyPatients.size() + dirtyInstances.size();
+					if ((changes <= maxFinalChanges) || (nRounds >= maxRounds)) break;
+					copyChanges(patientBatchSize);
+				}
+				recman.commit();
+				nRounds++;
+			}
+
+			phase = "swapping";
+			synchronized (index) {
+				copyChanges(Integer.MAX_VALUE);
+				copyJobs();
+				Tracker t = new Tracker(index.tracker.baseDir);
+				t.fileID = index.getFirstActiveSlot();
+				recman.setNamedObject("tracker", recman.insert(t));
+				recman.commit();
+				recman.close();
+				recman = null;
+				index.swap(compactFile);
+			}
+			newSize = getSize(index.indexFile);
+			phase = "done";
+			logger.info("Index compacted from "+oldSize+" to "+newSize+" bytes");
+		}
+		catch (InterruptedException ex) {
+			phase = "aborted";
+		}
+		catch (Exception ex) {
+			phase = "failed";
+			error = ex.getMessage();
+			logger.warn("Index compaction failed", ex);
+		}
+		finally {
+			index.endCompaction(this);
+			if (recman != null) {
+				try { recman.close(); }
+				catch (Exception ignore) { }
+				delete(compactFile);
+			}
+			endTime = System.currentTimeMillis();
+		}
+	}
+
+	private void checkInterrupt() throws InterruptedException {
+		if (isInterrupted()) throw new InterruptedException();
+	}
+
+	private BTree createBTree(String name) throws IOException {
+		BTree tree = BTree.createInstance(recman, new ByteArrayComparator(), null, new ByteArraySerializer());
+		recman.setNamedObject(name, tree.getRecid());
+		return tree;
+	}
+
+	//Copy a Patient, its Study headers, and the memberIndex entries
+	//of its studies, replacing any earlier copy. The Study headers
+	//get new record IDs in the copy, so the memberIndex keys and the
+	//studyIDs of the Patient are rewritten.
+	//This is called under the lock of the index.
+	private void copyPatient(String ptid) throws IOException {
+		Patient old = (Patient)patientIndex.get(ptid);
+		if (old != null) {
+			for (Long id : old.getStudyIDs().values()) {
+				removeMembers(id.longValue());
+				recman.delete(id.longValue());
+			}
+			patientIndex.remove(ptid);
+			statusIndex.remove(ptid);
+		}
+		Patient patient = index.loadPatient(ptid, false);
+		if (patient == null) return;
+		Patient header = patient.getHeader();
+		for (Map.Entry<String,Long> e : header.getStudyIDs().entrySet()) {
+			long oldID = e.getValue().longValue();
+			Study study = patient.getStudy(e.getKey()).getHeader();
+			study.setID( recman.insert(study) );
+			header.addStudy(e.getKey(), study);
+			long newID = study.getID();
+			byte[] prefix = BufferIndex.getMemberKey(oldID, BufferIndex.present);
+			TupleBrowser browser = index.memberIndex.browse(prefix);
+			Tuple tuple = new Tuple();
+			while (browser.getNext(tuple)) {
+				byte[] key = (byte[])tuple.getKey();
+				if (!BufferIndex.hasPrefix(key, prefix)) break;
+				byte[] newKey = key.clone();
+				for (int i=0; i<8; i++) newKey[i] = (byte)(newID >>> (56 - 8*i));
+				memberIndex.insert(newKey, BufferIndex.present, true);
+			}
+		}
+		patientIndex.put(ptid, header.getHeader());
+		statusIndex.put(header);
+	}
+
+	//Remove the memberIndex entries of a Study from the copy.
+	private void removeMembers(long studyID) throws IOException {
+		byte[] prefix = BufferIndex.getMemberKey(studyID, BufferIndex.present);
+		List<byte[]> keys = new LinkedList<byte[]>();
+		TupleBrowser browser = memberIndex.browse(prefix);
+		Tuple tuple = new Tuple();
+		while (browser.getNext(tuple)) {
+			byte[] key = (byte[])tuple.getKey();
+			if (!BufferIndex.hasPrefix(key, prefix)) break;
+			keys.add(key);
+		}
+		for (byte[] key : keys) memberIndex.remove(key);
+	}
+
+	//Copy the entries of a byte-array keyed BTree in batches,
+	//each under the lock of the index.
+	private void copyEntries(BTree from, BTree to) throws IOException, InterruptedException {
+		byte[] cursor = null;
+		boolean done = false;
+		while (!done) {
+			checkInterrupt();
+			synchronized (index) {
+				cursor = copyEntries(from, to, cursor);
+				done = (cursor == null);
+			}
+			recman.commit();
+		}
+	}
+	
+	//Copy a batch of entries, starting after the cursor key.
+	//Return the key of the last entry copied, or null if the end
+	//of the tree has been reached.
+	//This is called under the lock of the index.
+	private byte[] copyEntries(BTree from, BTree to, byte[] cursor) throws IOException {
+		ByteArrayComparator comparator = new ByteArrayComparator();
+		TupleBrowser browser = (cursor != null) ? from.browse(cursor) : from.browse();
+		Tuple tuple = new Tuple();
+		byte[] last = null;
+		int n = 0;
+		while ((n < instanceBatchSize) && browser.getNext(tuple)) {
+			byte[] key = (byte[])tuple.getKey();
+			if ((cursor != null) && (comparator.compare(key, cursor) <= 0)) continue;
+			to.insert(key, tuple.getValue(), true);
+			last = key;
+			n++;
+		}
+		nEntriesCopied += n;
+		return (n < instanceBatchSize) ? null : last;
+	}
+
+	//Copy up to a specified number of the patients and
+	//instances that have changed since they were copied.
+	//This is called under the lock of the index.
+	private void copyChanges(int max) throws IOException {
+		Iterator<String> it = dirtyPatients.iterator();
+		for (int i=0; (i<max) && it.hasNext(); i++) {
+			copyPatient(it.next());
+			it.remove();
+		}
+		it = dirtyInstances.iterator();
+		for (int i=0; (i<max) && it.hasNext(); i++) {
+			byte[] key = CompactUID.encode(it.next());
+			copyEntry(index.uidIndex, uidIndex, key);
+			copyEntry(index.tombstones, tombstones, key);
+			it.remove();
+		}
+	}
+
+	//Copy the current value of one key, removing the
+	//key from the copy if it is not in the original.
+	private void copyEntry(BTree from, BTree to, byte[] key) throws IOException {
+		Object value = from.find(key);
+		if (value != null) to.insert(key, value, true);
+		else if (to.find(key) != null) to.remove(key);
+	}
+	
+	//Copy the export jobs and the job counter.
+	//This is called under the lock of the index.
+	private void copyJobs() throws IOException {
+		BTree jobs = BTree.createInstance(recman, new LongComparator());
+		recman.setNamedObject("exportJobs", jobs.getRecid());
+		TupleBrowser browser = index.jobIndex.browse();
+		Tuple tuple = new Tuple();
+		while (browser.getNext(tuple)) {
+			jobs.insert(tuple.getKey(), ((ExportJob)tuple.getValue()).copy(), true);
+		}
+		Long counter = (Long)index.recman.fetch(index.jobCounterID);
+		recman.setNamedObject("jobCounter", recman.insert(counter));
+	}
+
+	/**
+	 * Append the progress of the compaction to a JSON object.
+	 * @param sb the buffer containing the JSON object.
+	 */
+	public void appendTo(StringBuilder sb) {
+		sb.append("\"compaction\":{");
+		sb.append("\"phase\":"+Patient.quote(phase));
+		sb.append(",\"patients\":"+nPatients);
+		sb.append(",\"patientsCopied\":"+nPatientsCopied);
+		sb.append(",\"entriesCopied\":"+nEntriesCopied);
+		sb.append(",\"rounds\":"+nRounds);
+		sb.append(",\"oldSize\":"+oldSize);
+		sb.append(",\"newSize\":"+newSize);
+		sb.append(",\"startTime\":"+startTime);
+		sb.append(",\"endTime\":"+endTime);
+		if (error != null) sb.append(",\"error\":"+Patient.quote(error));
+		sb.append("}");
+	}
+
+	//======================
+	//    Index files
+	//======================
+
+	static final String[] extensions = { ".db", ".lg" };
+
+	static File getFile(File base, String ext) {
+		return new File(base.getParentFile(), base.getName() + ext);
+	}
+
+	static long getSize(File base) {
+		long size = 0;
+		for (String ext : extensions) size += getFile(base, ext).length();
+		return size;
+	}
+
+	static void delete(File base) {
+		for (String ext : extensions) getFile(base, ext).delete();
+	}
+
+	static File getOldFile(File indexFile) {
+		return new File(indexFile.getParentFile(), "__old");
+	}
+
+	static File getCompactFile(File indexFile) {
+		return new File(indexFile.getParentFile(), "__compact");
+	}
+
+	//Move the files of one store to the names of another.
+	static void rename(File from, File to) throws IOException {
+		for (String ext : extensions) {
+			File fromFile = getFile(from, ext);
+			File toFile = getFile(to, ext);
+			toFile.delete();
+			if (fromFile.exists() && !fromFile.renameTo(toFile)) {
+				throw new IOException("Unable to rename "+fromFile+" to "+toFile);
+			}
+		}
+	}
+
+	/**
+	 * Replace the files of a closed index with those of a closed copy.
+	 * The index files are moved aside before the copy is moved into
+	 * place, so an interrupted replacement can be completed by
+	 * {@link #recover(File)}.
+	 * @param indexFile the base name of the index files.
+	 * @param compactFile the base name of the files of the copy.
+	 */
+	static void replace(File indexFile, File compactFile) throws IOException {
+		File oldFile = getOldFile(indexFile);
+		rename(indexFile, oldFile);
+		rename(compactFile, indexFile);
+		delete(oldFile);
+	}
+
+	/**
+	 * Complete or discard an interrupted compaction before an index is opened.
+	 * If the index file is missing, the copy is moved into place if it
+	 * exists, and otherwise the original index is moved back. Any other
+	 * files left by the compaction are deleted.
+	 * @param indexFile the base name of the index files.
+	 */
+	public static void recover(File indexFile) throws IOException {
+		File oldFile = getOldFile(indexFile);
+		File compactFile = getCompactFile(indexFile);
+		if (!getFile(indexFile, ".db").exists()) {
+			if (getFile(compactFile, ".db").exists()) {
+				rename(compactFile, indexFile);
+				logger.info("Interrupted index compaction completed");
+			}
+			else if (getFile(oldFile, ".db").exists()) {
+				rename(oldFile, indexFile);
+				logger.info("Interrupted index compaction rolled back");
+			}
+		}
+		delete(compactFile);
+		delete(oldFile);
+	}
+
+}
@@ -0,0 +1,363 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.pipeline.Status;
+
+/**
+ * A Thread to check a StoreIndex against the store directory and,
+ * optionally, to repair it.
+ * <p>
+ * The first pass scans the Tracker directory tree in parallel, forking a
+ * task for each two-digit hex subdirectory. Only the DICOM elements needed
+ * for the index are used, and the parser stops before the pixel data.
+ * A file whose SOPInstanceUID is not in the index is an orphan. In repair
+ * mode, the orphans of each patient in a leaf directory are checked again
+ * under the patient's lock, since the patient may have been exported and
+ * its files deleted in the meantime, and then added in one commit.
+ * Digests are not computed; they are computed when the files are exported.
+ * <p>
+ * The second pass checks the instances of every patient in the index, in
+ * parallel. An instance that is missing from the uidIndex, or whose file
+ * does not exist and has not been exported, is a dangling entry. In repair
+ * mode, dangling entries are removed from the index.
+ * <p>
+ * Slots at or after the first active slot when the check starts are not
+ * scanned, so the check can run while objects are being stored.
+ */
+public class IndexRebuilder extends Thread {
+
+	static final Logger logger = Logger.getLogger(IndexRebuilder.class);
+
+	static final int maxReported = 100;
+	static final int patientsPerTask = 64;
+
+	final StoreIndex index;
+	final PatientLocks locks;
+	final Tracker tracker;
+	final boolean repair;
+	final int parallelism;
+	final Runnable changed;
+	long lastSlot = Long.MAX_VALUE;
+	ForkJoinPool pool = null;
+
+	volatile String phase = "starting";
+	final AtomicLong nFiles = new AtomicLong(0);
+	final AtomicLong nOrphans = new AtomicLong(0);
+	final AtomicLong nAdded = new AtomicLong(0);
+	final AtomicLong nDuplicates = new AtomicLong(0);
+	final AtomicLong nUnreadable = new AtomicLong(0);
+	final AtomicLong maxSlot = new AtomicLong(-1);
+	final AtomicInteger nPatients = new AtomicInteger(0);
+	final AtomicLong nInstances = new AtomicLong(0);
+	final AtomicLong nDangling = new AtomicLong(0);
+	final AtomicLong nRemoved = new AtomicLong(0);
+	final ConcurrentLinkedQueue<String> orphans = new ConcurrentLinkedQueue<String>();
+	final ConcurrentLinkedQueue<String> dangling = new ConcurrentLinkedQueue<String>();
+	volatile long startTime = 0;
+	volatile long endTime = 0;
+	volatile String error = null;
+
+	/**
+	 * Create a rebuilder.
+	 * @param index the index to check.
+	 * @param locks the locks that serialize changes to each patient.
+	 * @param repair true if orphan files are to be added to the
+	 * index and dangling entries are to be removed.
+	 * @param parallelism the number of threads to use.
+	 * @param changed called after each repair that changes the index,
+	 * or null if no notification is required.
+	 */
+	public IndexRebuilder(StoreIndex index, PatientLocks locks, boolean repair, int parallelism, Runnable changed) {
+		super("IndexRebuilder");
+		this.index = index;
+		this.locks = locks;
+		this.tracker = index.getTracker();
+		this.repair = repair;
+		this.parallelism = Math.max(parallelism, 1);
+		this.changed = changed;
+	}
+
+	/**
+	 * Determine whether the rebuilder repairs the index.
+	 * @return true if the index is repaired; false if it is only checked.
+	 */
+	public boolean isRepair() {
+		return repair;
+	}
+
+	/**
+	 * Check the index while objects are being stored. Slots that
+	 * are allocated after the check starts are not scanned.
+	 */
+	public void run() {
+		lastSlot = index.getFirstActiveSlot();
+		check();
+	}
+	
+	/**
+	 * Scan the store directory, then check the index. This is
+	 * called directly when no objects are being stored, in which
+	 * case all the slots are scanned.
+	 */
+	public void check() {
+		startTime = System.currentTimeMillis();
+		pool = new ForkJoinPool(parallelism);
+		try {
+			phase = "files";
+			pool.invoke( new DirectoryTask(tracker.baseDir, 0) );
+			if (repair && (maxSlot.get() >= 0)) index.skipTo(maxSlot.get() + 1);
+
+			phase = "index";
+			List<String> ptids = new ArrayList<String>( index.getAllPatientIDs() );
+			pool.invoke( new PatientTask(ptids, 0, ptids.size()) );
+			phase = "done";
+		}
+		catch (Exception ex) {
+			phase = isInterrupted() ? "aborted" : "failed";
+			error = ex.getMessage();
+			if (!isInterrupted()) logger.warn("Index check failed", ex);
+		}
+		finally {
+			pool.shutdownNow();
+			endTime = System.currentTimeMillis();
+		}
+		logger.info("Index "+(repair ? "repair" : "check")+" "+phase+": "
+						+nFiles.get()+" files, "
+						+nOrphans.get()+" orphans, "
+						+nAdded.get()+" added, "
+						+nDuplicates.get()+" duplicates, "
+						+nUnreadable.get()+" unreadable, "
+						+nInstances.get()+" indexed instances, "
+						+nDangling.get()+" dangling, "
+						+nRemoved.get()+" removed");
+	}
+
+	/**
+	 * Stop the check, abandoning any tasks in progress.
+	 */
+	public void interrupt() {
+		super.interrupt();
+		ForkJoinPool p = pool;
+		if (p != null) p.shutdownNow();
+	}
+
+	private void changed() {
+		if (changed != null) changed.run();
+	}
+
+	private void report(ConcurrentLinkedQueue<String> list, AtomicLong count, String item) {
+		if (count.incrementAndGet() <= maxReported) list.add(item);
+	}
+
+	//Scan one directory of the Tracker tree. Directories above the
+	//files contain subdirectories with two-digit hex names.
+	class DirectoryTask extends RecursiveAction {
+		static final long serialVersionUID = 1L;
+		final File dir;
+		final int depth;
+
+		DirectoryTask(File dir, int depth) {
+			this.dir = dir;
+			this.depth = depth;
+		}
+
+		protected void compute() {
+			if (isInterrupted()) return;
+			File[] files = dir.listFiles();
+			if (files == null) return;
+			Arrays.sort(files);
+			if (depth < 3) {
+				LinkedList<DirectoryTask> tasks = new LinkedList<DirectoryTask>();
+				for (File file : files) {
+					if (file.isDirectory() && (file.getName().length() == 2)) {
+						tasks.add( new DirectoryTask(file, depth+1) );
+					}
+				}
+				invokeAll(tasks);
+			}
+			else scanFiles(files);
+		}
+
+		void scanFiles(File[] files) {
+			LinkedList<StoredInstance> found = new LinkedList<StoredInstance>();
+			for (File file : files) {
+				long fileID = tracker.getFileID(file);
+				if (fileID < 0) continue;
+				if (fileID >= lastSlot) continue;
+				nFiles.incrementAndGet();
+				long max = maxSlot.get();
+				while ((fileID > max) && !maxSlot.compareAndSet(max, fileID)) max = maxSlot.get();
+				try {
+					DicomObject dob = StoredFile.parse(file);
+					String uid = dob.getSOPInstanceUID();
+					Instance instance = index.getInstance(uid);
+					if (instance == null) {
+						report(orphans, nOrphans, file.getPath());
+						found.add( new StoredInstance(
+										dob.getPatientID(),
+										dob.getStudyInstanceUID(),
+										dob.getStudyDate(),
+										dob.getModality(),
+										uid,
+										new Instance(fileID, file, null)) );
+					}
+					else if (instance.getFileID() != fileID) nDuplicates.incrementAndGet();
+				}
+				catch (Exception ex) { nUnreadable.incrementAndGet(); }
+			}
+			if (repair && (found.size() > 0)) {
+				HashMap<String,LinkedList<StoredInstance>> patients = new HashMap<String,LinkedList<StoredInstance>>();
+				for (StoredInstance si : found) {
+					LinkedList<StoredInstance> list = patients.get(si.patientID);
+					if (list == null) {
+						list = new LinkedList<StoredInstance>();
+						patients.put(si.patientID, list);
+					}
+					list.add(si);
+				}
+				for (String ptid : patients.keySet()) addOrphans(ptid, patients.get(ptid));
+			}
+		}
+
+		void addOrphans(String ptid, List<StoredInstance> found) {
+			ReentrantLock lock = locks.get(ptid);
+			lock.lock();
+			try {
+				LinkedList<StoredInstance> orphans = new LinkedList<StoredInstance>();
+				for (StoredInstance si : found) {
+					if (si.instance.getFile().exists() && (index.getInstance(si.uid) == null)) orphans.add(si);
+				}
+				if (orphans.size() > 0) {
+					index.addInstances(orphans);
+					nAdded.addAndGet(orphans.size());
+					changed();
+				}
+			}
+			catch (Exception ex) { logger.warn("Unable to index the files of "+ptid+" in "+dir, ex); }
+			finally { lock.unlock(); }
+		}
+	}
+
+	//Check the instances of a range of patients.
+	class PatientTask extends RecursiveAction {
+		static final long serialVersionUID = 1L;
+		final List<String> ptids;
+		final int start;
+		final int end;
+
+		PatientTask(List<String> ptids, int start, int end) {
+			this.ptids = ptids;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (isInterrupted()) return;
+			if (end - start > patientsPerTask) {
+				int mid = (start + end) >>> 1;
+				invokeAll( new PatientTask(ptids, start, mid), new PatientTask(ptids, mid, end) );
+			}
+			else {
+				for (int i=start; i<end; i++) checkPatient(ptids.get(i));
+			}
+		}
+
+		void checkPatient(String ptid) {
+			Patient patient = index.getPatient(ptid, true);
+			if (patient == null) return;
+			nPatients.incrementAndGet();
+			boolean found = false;
+			for (Study study : patient.getStudies()) {
+				for (String uid : study.getInstanceUIDs()) {
+					nInstances.incrementAndGet();
+					if (isDangling(uid)) found = true;
+				}
+			}
+			if (!found) return;
+
+			//Check the candidates again under the lock of the index,
+			//since the patient may have been exported in the meantime.
+			synchronized (index) {
+				patient = index.getPatient(ptid, true);
+				if (patient == null) return;
+				Patient danglingEntries = new Patient(ptid);
+				int n = 0;
+				for (Study study : patient.getStudies()) {
+					Study s = new Study(study.getStudyInstanceUID(), study.getStudyDate(), study.getModality());
+					s.setID(study.getID());
+					for (String uid : study.getInstanceUIDs()) {
+						if (isDangling(uid)) {
+							s.addInstanceUID(uid);
+							report(dangling, nDangling, uid);
+							n++;
+						}
+					}
+					if (s.getNumberOfInstances() > 0) danglingEntries.addStudy(study.getStudyInstanceUID(), s);
+				}
+				if (repair && (n > 0)) {
+					Status status = patient.getStatus();
+					index.deletePatient(danglingEntries);
+					if (!status.is(Status.NONE)) index.setStatus(ptid, status);
+					nRemoved.addAndGet(n);
+					changed();
+				}
+			}
+		}
+
+		boolean isDangling(String uid) {
+			Instance instance = index.getInstance(uid);
+			if (instance == null) return true;
+			return !instance.isExported() && !instance.getFile().exists();
+		}
+	}
+
+	/**
+	 * Append the progress of the check to a JSON object.
+	 * @param sb the buffer containing the JSON object.
+	 */
+	public void appendTo(StringBuilder sb) {
+		sb.append("\"rebuild\":{");
+		sb.append("\"phase\":"+Patient.quote(phase));
+		sb.append(",\"repair\":"+repair);
+		sb.append(",\"files\":"+nFiles.get());
+		sb.append(",\"orphans\":"+nOrphans.get());
+		sb.append(",\"added\":"+nAdded.get());
+		sb.append(",\"duplicates\":"+nDuplicates.get());
+		sb.append(",\"unreadable\":"+nUnreadable.get());
+		sb.append(",\"patients\":"+nPatients.get());
+		sb.append(",\"instances\":"+nInstances.get());
+		sb.append(",\"dangling\":"+nDangling.get());
+		sb.append(",\"removed\":"+nRemoved.get());
+		sb.append(",\"startTime\":"+startTime);
+		sb.append(",\"endTime\":"+endTime);
+		if (error != null) sb.append(",\"error\":"+Patient.quote(error));
+		appendList(sb, "orphanFiles", orphans);
+		appendList(sb, "danglingUIDs", dangling);
+		sb.append("}");
+	}
+
+	private void appendList(StringBuilder sb, String name, ConcurrentLinkedQueue<String> list) {
+		sb.append(",\""+name+"\":[");
+		boolean first = true;
+		for (String s : list) {
+			if (!first) sb.append(",");
+			sb.append(Patient.quote(s));
+			first = false;
+		}
+		sb.append("]");
+	}
+
+}
@@ -0,0 +1,19 @@
+package org.rsna.ctp.stdstages.buffer;
+
+/**
+ * A background task on an index, such as a compaction,
+ * whose progress can be reported as JSON.
+ */
+public abstract class IndexTask extends Thread {
+
+	public IndexTask(String name) {
+		super(name);
+	}
+
+	/**
+	 * Append the progress of the task to a JSON object.
+	 * @param sb the buffer containing the JSON object.
+	 */
+	public abstract void appendTo(StringBuilder sb);
+
+}
@@ -0,0 +1,101 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * An instance in an IndexedDicomBuffer.
+ * <p>
+ * In the index, an Instance is stored as a byte array containing the
+ * eight-byte store slot ID allocated by the Tracker, followed by the
+ * sixteen bytes of the MD5 digest if it is known. The high bit of the
+ * slot ID is set once the instance has been accepted by the export
+ * destination. The File is derived from the slot ID when the Instance
+ * is loaded. Indexes created before this layout contain serialized
+ * Instance objects.
+ */
+public class Instance implements Serializable {
+	static final long serialVersionUID = 2184280626326054500L;
+	File file;
+	String digest;
+	transient long fileID = -1;
+	transient boolean exported = false;
+	
+	static final long exportedFlag = 1L << 63;
+	
+	public Instance(File file, String digest) {
+		this.file = file;
+		this.digest = digest;
+	}
+	
+	public Instance(long fileID, File file, String digest) {
+		this(file, digest);
+		this.fileID = fileID;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public long getFileID() {
+		return fileID;
+	}
+	
+	public boolean isExported() {
+		return exported;
+	}
+	
+	public void setExported(boolean exported) {
+		this.exported = exported;
+	}
+	
+	public String getDigest() {
+		return digest;
+	}
+	
+	public boolean hasDigest() {
+		return (digest != null) && !digest.equals("");
+	}
+	
+	/**
+	 * Get the index record for this Instance.
+	 * @return the slot ID and the digest, encoded as bytes.
+	 */
+	public byte[] getBytes() {
+		int n = hasDigest() ? digest.length() / 2 : 0;
+		byte[] bytes = new byte[8 + n];
+		long id = exported ? (fileID | exportedFlag) : fileID;
+		for (int i=0; i<8; i++) bytes[i] = (byte)(id >>> (56 - 8*i));
+		for (int i=0; i<n; i++) {
+			bytes[8 + i] = (byte)Integer.parseInt(digest.substring(2*i, 2*i + 2), 16);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Create an Instance from its index record.
+	 * @param bytes the index record.
+	 * @param tracker the Tracker from which to derive the File.
+	 * @return the Instance.
+	 */
+	public static Instance fromBytes(byte[] bytes, Tracker tracker) {
+		long fileID = 0;
+		for (int i=0; i<8; i++) fileID = (fileID << 8) | (bytes[i] & 0xFF);
+		boolean exported = ((fileID & exportedFlag) != 0);
+		fileID &= ~exportedFlag;
+		String digest = null;
+		if (bytes.length > 8) {
+			char[] hex = new char[2 * (bytes.length - 8)];
+			for (int i=8; i<bytes.length; i++) {
+				hex[2*(i-8)] = hexDigits[(bytes[i] >> 4) & 0xF];
+				hex[2*(i-8)+1] = hexDigits[bytes[i] & 0xF];
+			}
+			digest = new String(hex);
+		}
+		Instance instance = new Instance(fileID, tracker.getFile(fileID), digest);
+		instance.exported = exported;
+		return instance;
+	}
+	static final char[] hexDigits = "0123456789abcdef".toCharArray();
+	
+}
@@ -0,0 +1,179 @@
+package org.rsna.ctp.stdstages.buffer;
+
+/**
+ * A set of SOPInstanceUIDs held in a single byte array.
+ * <p>
+ * Each UID is stored in its CompactUID encoding, preceded by a two-byte
+ * length, and the set is indexed by an open-addressing hash table of
+ * offsets into the array. This avoids the per-entry String and HashMap
+ * node objects of a HashSet, which dominate the memory used by studies
+ * with thousands of instances.
+ */
+public class InstanceSet {
+	
+	byte[] data;
+	int length = 0;
+	int[] table;
+	int size = 0;
+	
+	public InstanceSet() {
+		this(16);
+	}
+	
+	public InstanceSet(int capacity) {
+		data = new byte[Math.max(capacity, 1) * 24];
+		int n = 16;
+		while (n < 2 * capacity) n <<= 1;
+		table = new int[n];
+	}
+	
+	/**
+	 * Add a UID to the set.
+	 * @param uid the UID.
+	 * @return true if the UID was added; false if it was already in the set.
+	 */
+	public boolean add(String uid) {
+		byte[] bytes = CompactUID.encode(uid);
+		return addEncoded(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Add an encoded UID to the set.
+	 * @param bytes the array containing the encoded UID.
+	 * @param offset the index of the first byte of the encoded UID.
+	 * @param len the number of bytes in the encoded UID.
+	 * @return true if the UID was added; false if it was already in the set.
+	 */
+	public synchronized boolean addEncoded(byte[] bytes, int offset, int len) {
+		if (find(bytes, offset, len) >= 0) return false;
+		if (2 * (size + 1) > table.length) rehash(2 * table.length);
+		ensureCapacity(length + len + 2);
+		int entry = length;
+		data[length++] = (byte)(len >> 8);
+		data[length++] = (byte)len;
+		System.arraycopy(bytes, offset, data, length, len);
+		length += len;
+		insert(entry);
+		size++;
+		return true;
+	}
+	
+	/**
+	 * Determine whether the set contains a UID.
+	 * @param uid the UID.
+	 * @return true if the set contains the UID.
+	 */
+	public synchronized boolean contains(String uid) {
+		byte[] bytes = CompactUID.encode(uid);
+		return find(bytes, 0, bytes.length) >= 0;
+	}
+	
+	/**
+	 * Get the number of UIDs in the set.
+	 * @return the number of UIDs in the set.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Get the UIDs in the set.
+	 * @return the decoded UIDs, in the order in which they were added.
+	 */
+	public synchronized String[] toArray() {
+		String[] uids = new String[size];
+		int k = 0;
+		int i = 0;
+		while (i < length) {
+			int len = getLength(i);
+			uids[k++] = CompactUID.decode(data, i + 2, len);
+			i += len + 2;
+		}
+		return uids;
+	}
+	
+	/**
+	 * Get a copy of the set.
+	 * @return the copy.
+	 */
+	public synchronized InstanceSet copy() {
+		InstanceSet set = new InstanceSet(0);
+		set.data = new byte[Math.max(length, 1)];
+		System.arraycopy(data, 0, set.data, 0, length);
+		set.length = length;
+		set.table = table.clone();
+		set.size = size;
+		return set;
+	}
+	
+	/**
+	 * Get a new set containing the UIDs of this set that are not in another set.
+	 * @param removed the UIDs to leave out.
+	 * @return the new set.
+	 */
+	public synchronized InstanceSet without(InstanceSet removed) {
+		InstanceSet set = new InstanceSet(Math.max(size - removed.size(), 0));
+		int i = 0;
+		while (i < length) {
+			int len = getLength(i);
+			if (removed.find(data, i + 2, len) < 0) set.addEncoded(data, i + 2, len);
+			i += len + 2;
+		}
+		return set;
+	}
+	
+	private int getLength(int entry) {
+		return ((data[entry] & 0xFF) << 8) | (data[entry + 1] & 0xFF);
+	}
+	
+	private int hash(byte[] bytes, int offset, int len) {
+		int h = 1;
+		for (int i=offset; i<offset+len; i++) h = 31 * h + bytes[i];
+		h ^= (h >>> 16);
+		return h & (table.length - 1);
+	}
+	
+	//Find the table slot containing an encoded UID, or -1.
+	//Table entries hold the offset of the entry plus one.
+	private int find(byte[] bytes, int offset, int len) {
+		int slot = hash(bytes, offset, len);
+		int e;
+		while ( (e=table[slot]) != 0 ) {
+			int entry = e - 1;
+			if ((getLength(entry) == len) && regionMatches(entry + 2, bytes, offset, len)) return slot;
+			slot = (slot + 1) & (table.length - 1);
+		}
+		return -1;
+	}
+	
+	private boolean regionMatches(int start, byte[] bytes, int offset, int len) {
+		for (int i=0; i<len; i++) {
+			if (data[start + i] != bytes[offset + i]) return false;
+		}
+		return true;
+	}
+	
+	private void insert(int entry) {
+		int slot = hash(data, entry + 2, getLength(entry));
+		while (table[slot] != 0) slot = (slot + 1) & (table.length - 1);
+		table[slot] = entry + 1;
+	}
+	
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		int i = 0;
+		while (i < length) {
+			insert(i);
+			i += getLength(i) + 2;
+		}
+	}
+	
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			byte[] newData = new byte[Math.max(capacity, 2 * data.length)];
+			System.arraycopy(data, 0, newData, 0, length);
+			data = newData;
+		}
+	}
+	
+}
@@ -0,0 +1,943 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.pipeline.Status;
+
+/**
+ * An index of an IndexedDicomBuffer held in memory, with its updates
+ * recorded in an append-only, memory-mapped log (see MappedLog).
+ * <p>
+ * Every update is a single log record, and the in-memory structures are
+ * updated by applying the record, exactly as when the log is replayed at
+ * startup. Storing an instance therefore costs one record of about a
+ * hundred bytes, written to memory, and a commit forces only the log
+ * pages written since the last commit. Nothing is read from the disk to
+ * store an instance or to list patients.
+ * <p>
+ * The state is kept in a LogState, which uses about 40 bytes per instance
+ * plus the encoded UIDs:
+ * <ul>
+ * <li>patients: PatientID to Patient, whose Studies hold their instance UIDs
+ * in InstanceSets
+ * <li>sets: the status partitions, sorted by PatientID, as in StatusIndex
+ * <li>instances: an OffsetTable of SOPInstanceUID to the log record
+ * holding the current Instance record (store slot ID and digest)
+ * <li>tombstones: an OffsetTable of SOPInstanceUID to the log record
+ * holding the time and digest of a removed exported instance
+ * <li>jobs: job ID to ExportJob
+ * </ul>
+ * <p>
+ * The log grows with every update, so it is rewritten from the state (a
+ * checkpoint) by a background thread when it has doubled since the last
+ * checkpoint, and on request through compact(). The checkpoint replays the
+ * log into a second LogState and writes it to a new file without holding
+ * the index, so the memory used doubles while it runs. The index is held
+ * only to copy the records appended in the meantime and to replace the
+ * log by an atomic rename.
+ */
+public class LogIndex implements StoreIndex {
+
+	static final Logger logger = Logger.getLogger(LogIndex.class);
+
+	static final String logDirName = "__log";
+	static final long minCheckpointGrowth = 64 * 1024 * 1024;
+
+	//Record types
+	static final byte INSTANCE = 1;
+	static final byte EXPORTED = 2;
+	static final byte PATIENT = 3;
+	static final byte DELETE = 4;
+	static final byte TOMBSTONE = 5;
+	static final byte UNTOMB = 6;
+	static final byte JOB = 7;
+	static final byte REMOVEJOB = 8;
+	static final byte TRACKER = 9;
+
+	static final Status[] statuses = { Status.NONE, Status.PENDING, Status.OK, Status.FAIL, Status.RETRY };
+
+	final File logDir;
+	final File logFile;
+	MappedLog log = null;
+	long checkpointLength = 0;
+	LogState state = null;
+	boolean keepTombstones = false;
+	final Tracker tracker;
+	final SlotLimit slotLimit;
+	final TreeSet<Long> inFlight = new TreeSet<Long>();
+	final Metrics metrics;
+
+	final int commitBatchSize;
+	final long commitInterval;
+	int uncommitted = 0;
+	long lastCommitTime = 0;
+	IndexTask checkpointer = null;
+	boolean closed = false;
+	boolean syncOnCommit = false;
+	LinkedList<File> unsynced = new LinkedList<File>();
+
+	/**
+	 * Open the index, creating it if necessary, and replay its log.
+	 * @param indexDir the directory containing the index files.
+	 * @param storeDir the root directory of the stored files.
+	 * @param commitBatchSize the maximum number of instances per commit.
+	 * @param commitInterval the maximum time (in ms) that an instance can remain uncommitted.
+	 * @param metrics the Metrics in which to record commit latencies.
+	 * @throws Exception if the index cannot be opened.
+	 */
+	public LogIndex(File indexDir, File storeDir, int commitBatchSize, long commitInterval, Metrics metrics) throws Exception {
+		this.commitBatchSize = commitBatchSize;
+		this.commitInterval = commitInterval;
+		this.metrics = metrics;
+		logDir = new File(indexDir, logDirName);
+		logDir.mkdirs();
+		logFile = new File(logDir, "index.log");
+		getCheckpointFile().delete();
+		tracker = new Tracker(storeDir);
+		slotLimit = new SlotLimit(indexDir);
+		log = new MappedLog(logFile, MappedLog.defaultSegmentSize);
+		state = new LogState(log);
+		log.scan(state);
+		tracker.fileID = state.committedSlot;
+		checkpointLength = log.length();
+		lastCommitTime = System.currentTimeMillis();
+		logger.info("Index log loaded: "+state.patients.size()+" patients, "+state.instances.size()+" instances");
+	}
+
+	/**
+	 * Determine whether an index directory contains a log.
+	 * @param indexDir the directory containing the index files.
+	 * @return true if the log exists.
+	 */
+	public static boolean exists(File indexDir) {
+		return new File(new File(indexDir, logDirName), "index.log").exists();
+	}
+
+	/**
+	 * Move the log of an index that cannot be opened aside, so that
+	 * a new index can be created. The log is kept for analysis.
+	 * @param indexDir the directory containing the index files.
+	 */
+	public static void discard(File indexDir) throws IOException {
+		File dir = new File(indexDir, logDirName);
+		if (!dir.exists()) return;
+		File corrupt = new File(indexDir, logDirName + ".corrupt");
+		if (corrupt.exists()) {
+			File[] files = corrupt.listFiles();
+			if (files != null) for (File file : files) file.delete();
+			corrupt.delete();
+		}
+		if (!dir.renameTo(corrupt)) throw new IOException("Unable to move "+dir+" aside");
+		logger.warn("Index log moved to "+corrupt);
+	}
+
+	private File getCheckpointFile() {
+		return new File(logDir, "checkpoint.log");
+	}
+
+	//======================
+	//    Log records
+	//======================
+
+	//A buffer for building a log record.
+	static class RecordBuilder extends DataOutputStream {
+		RecordBuilder(byte type) throws IOException {
+			super(new ByteArrayOutputStream());
+			writeByte(type);
+		}
+		void writeBytes(byte[] bytes) throws IOException {
+			writeShort(bytes.length);
+			write(bytes);
+		}
+		void writeString(String s) throws IOException {
+			writeBoolean(s != null);
+			if (s != null) writeUTF(s);
+		}
+		byte[] toByteArray() {
+			return ((ByteArrayOutputStream)out).toByteArray();
+		}
+	}
+
+	static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedShort()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	//Records that are found by a UID start with the encoded UID and a value.
+	static byte[] keyedRecord(byte type, byte[] key, byte[] value) throws IOException {
+		RecordBuilder rb = new RecordBuilder(type);
+		rb.writeBytes(key);
+		rb.writeBytes(value);
+		return rb.toByteArray();
+	}
+
+	static byte[] instanceRecord(byte[] key, byte[] value, long time,
+								 String patientID, String studyInstanceUID,
+								 String studyDate, String modality) throws IOException {
+		RecordBuilder rb = new RecordBuilder(INSTANCE);
+		rb.writeBytes(key);
+		rb.writeBytes(value);
+		rb.writeLong(time);
+		rb.writeString(patientID);
+		rb.writeString(studyInstanceUID);
+		rb.writeString(studyDate);
+		rb.writeString(modality);
+		return rb.toByteArray();
+	}
+
+	static byte[] patientRecord(Patient p) throws IOException {
+		RecordBuilder rb = new RecordBuilder(PATIENT);
+		rb.writeString(p.getPatientID());
+		rb.writeString(p.getStatus().toString());
+		rb.writeString(p.getComment());
+		rb.writeString(p.getSubmissionID());
+		rb.writeLong(p.getLastModifiedTime());
+		return rb.toByteArray();
+	}
+
+	static byte[] jobRecord(ExportJob job) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(job);
+		oos.close();
+		RecordBuilder rb = new RecordBuilder(JOB);
+		rb.writeLong(job.getID());
+		rb.writeInt(bytes.size());
+		rb.write(bytes.toByteArray());
+		return rb.toByteArray();
+	}
+
+	static byte[] idRecord(byte type, long id) throws IOException {
+		RecordBuilder rb = new RecordBuilder(type);
+		rb.writeLong(id);
+		return rb.toByteArray();
+	}
+
+	//Append a record to the log and apply it.
+	private void record(byte[] payload) throws IOException {
+		state.apply(payload, log.append(payload));
+	}
+
+	private Instance getInstance(byte[] key) {
+		long offset = state.instances.get(key);
+		return (offset >= 0) ? Instance.fromBytes(state.getValue(offset), tracker) : null;
+	}
+
+	static Status getStatus(String name) {
+		for (Status s : statuses) {
+			if (s.toString().equals(name)) return s;
+		}
+		return Status.NONE;
+	}
+
+	//Get a copy of a Patient for a caller.
+	private Patient copy(Patient pt, boolean withInstances) {
+		Patient p = pt.getHeader();
+		for (Study study : pt.getStudies()) {
+			Study s = study.getHeader();
+			if (withInstances) s.setInstances(study.instances.copy());
+			p.addStudy(study.getStudyInstanceUID(), s);
+		}
+		return p;
+	}
+
+	//======================
+	//    Commits
+	//======================
+
+	/**
+	 * Commit all pending updates, including the Tracker position.
+	 * If the log has doubled since the last checkpoint, a checkpoint
+	 * is started in the background.
+	 */
+	public synchronized void commit() {
+		try {
+			long startTime = System.nanoTime();
+			syncFiles();
+			log.append( idRecord(TRACKER, getFirstActiveSlot()) );
+			log.force();
+			metrics.commit.record(System.nanoTime() - startTime);
+			uncommitted = 0;
+			lastCommitTime = System.currentTimeMillis();
+		}
+		catch (Exception ex) { logger.warn("Commit failed", ex); }
+		if (log.length() - checkpointLength > Math.max(checkpointLength, minCheckpointGrowth)) compact();
+	}
+
+	/**
+	 * Specify whether the files of the instances added in a batch are
+	 * forced to the disk before the batch is committed.
+	 * @param syncOnCommit true if the files are to be forced at commit.
+	 */
+	public synchronized void setSyncOnCommit(boolean syncOnCommit) {
+		this.syncOnCommit = syncOnCommit;
+	}
+
+	private void syncFiles() {
+		if (unsynced.isEmpty()) return;
+		HashSet<File> dirs = new HashSet<File>();
+		for (File file : unsynced) {
+			BufferIndex.sync(file);
+			dirs.add(file.getParentFile());
+		}
+		for (File dir : dirs) BufferIndex.sync(dir);
+		unsynced.clear();
+	}
+
+	/**
+	 * Commit the current batch if it has been open for
+	 * longer than the commitInterval.
+	 */
+	public synchronized void flush() {
+		if ((uncommitted > 0) && commitIsDue()) commit();
+	}
+
+	private boolean commitIsDue() {
+		return (System.currentTimeMillis() - lastCommitTime) >= commitInterval;
+	}
+
+	private void countUpdate() {
+		uncommitted++;
+		if ((uncommitted >= commitBatchSize) || commitIsDue()) commit();
+	}
+
+	/**
+	 * Get the number of instances added since the last commit.
+	 * @return the number of uncommitted instances.
+	 */
+	public synchronized int getUncommitted() {
+		return uncommitted;
+	}
+
+	/**
+	 * Commit and close the index.
+	 */
+	public synchronized void close() {
+		try {
+			commit();
+			closed = true;
+			if (checkpointer != null) checkpointer.interrupt();
+			log.close();
+		}
+		catch (Exception ex) { logger.warn("Unable to close the index", ex); }
+	}
+
+	//======================
+	//    Checkpoints
+	//======================
+
+	/**
+	 * Start a checkpoint, which rewrites the log from the state.
+	 * @return the task performing the checkpoint, or null if a
+	 * checkpoint is already in progress.
+	 */
+	public synchronized IndexTask compact() {
+		if (closed || ((checkpointer != null) && checkpointer.isAlive())) return null;
+		checkpointer = new Checkpointer();
+		checkpointer.start();
+		return checkpointer;
+	}
+
+	//A Thread to write a checkpoint and report its progress.
+	class Checkpointer extends IndexTask {
+		volatile String phase = "starting";
+		volatile long oldSize = 0;
+		volatile long newSize = 0;
+		volatile long tailSize = 0;
+		volatile long startTime = 0;
+		volatile long endTime = 0;
+		volatile String error = null;
+
+		Checkpointer() {
+			super("LogCheckpoint");
+		}
+
+		public void run() {
+			startTime = System.currentTimeMillis();
+			try {
+				checkpoint(this);
+				phase = "done";
+			}
+			catch (Exception ex) {
+				phase = isInterrupted() ? "aborted" : "failed";
+				error = ex.getMessage();
+				if (!isInterrupted()) logger.warn("Checkpoint failed", ex);
+				//Wait for the log to grow again before retrying
+				synchronized (LogIndex.this) { checkpointLength = log.length(); }
+			}
+			endTime = System.currentTimeMillis();
+			logger.info("Index log checkpoint "+phase+": "+oldSize+" bytes to "+newSize
+							+" bytes in "+(endTime - startTime)+" ms");
+		}
+
+		public void appendTo(StringBuilder sb) {
+			sb.append("\"compaction\":{");
+			sb.append("\"phase\":"+Patient.quote(phase));
+			sb.append(",\"oldSize\":"+oldSize);
+			sb.append(",\"newSize\":"+newSize);
+			sb.append(",\"tailSize\":"+tailSize);
+			sb.append(",\"startTime\":"+startTime);
+			sb.append(",\"endTime\":"+endTime);
+			if (error != null) sb.append(",\"error\":"+Patient.quote(error));
+			sb.append("}");
+		}
+	}
+
+	//Write a checkpoint. The log up to a snapshot position is replayed
+	//into a new state through a second mapping of the file, and the new
+	//state is written to a new log, without holding the index. Then,
+	//holding the index only briefly, the records appended since the
+	//snapshot are copied to the new log and applied to the new state,
+	//and the new log replaces the current one by an atomic rename.
+	//If the checkpoint fails, the current log remains in use.
+	private void checkpoint(Checkpointer task) throws IOException {
+		long snapshot;
+		synchronized (this) {
+			if (closed) throw new IOException("The index is closed");
+			commit();
+			snapshot = log.length();
+		}
+		task.oldSize = snapshot;
+		File file = getCheckpointFile();
+		file.delete();
+		MappedLog source = new MappedLog(logFile, MappedLog.defaultSegmentSize);
+		MappedLog next = null;
+		boolean swapped = false;
+		try {
+			task.phase = "replaying";
+			final LogState nextState = new LogState(source);
+			source.read(0, snapshot, nextState);
+			if (task.isInterrupted()) throw new IOException("Interrupted");
+			task.phase = "writing";
+			next = new MappedLog(file, MappedLog.defaultSegmentSize);
+			nextState.writeTo(next);
+			next.force();
+			if (task.isInterrupted()) throw new IOException("Interrupted");
+			synchronized (this) {
+				if (closed) throw new IOException("The index is closed");
+				task.phase = "swapping";
+				final MappedLog nextLog = next;
+				log.read(snapshot, log.length(),
+					new MappedLog.Reader() {
+						public void record(long offset, byte[] payload) throws IOException {
+							nextState.apply(payload, nextLog.append(payload));
+						}
+					}
+				);
+				task.tailSize = log.length() - snapshot;
+				next.append( idRecord(TRACKER, getFirstActiveSlot()) );
+				next.force();
+				Files.move(file.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				swapped = true;
+				BufferIndex.sync(logDir);
+				next.renamedTo(logFile);
+				try { log.close(); }
+				catch (Exception ignore) { }
+				log = next;
+				state = nextState;
+				checkpointLength = log.length();
+				task.newSize = checkpointLength;
+			}
+		}
+		finally {
+			try { source.close(); }
+			catch (Exception ignore) { }
+			if (!swapped) {
+				try { if (next != null) next.close(); }
+				catch (Exception ignore) { }
+				file.delete();
+			}
+		}
+	}
+
+	//======================
+	//    Store slots
+	//======================
+
+	/**
+	 * Get the Tracker that allocates the store slots.
+	 * @return the Tracker.
+	 */
+	public Tracker getTracker() {
+		return tracker;
+	}
+
+	/**
+	 * Allocate the next store slot. The slot remains in flight,
+	 * holding back the committed Tracker position, until it
+	 * is released.
+	 * @return the ID of the slot.
+	 */
+	public synchronized long allocate() {
+		long fileID = tracker.getNextFileID();
+		slotLimit.reserve(fileID);
+		inFlight.add(fileID);
+		return fileID;
+	}
+
+	/**
+	 * Release a store slot after its instance has been
+	 * indexed or its store attempt has failed.
+	 * @param fileID the ID of the slot.
+	 */
+	public synchronized void release(long fileID) {
+		inFlight.remove(fileID);
+	}
+
+	/**
+	 * Get the lowest slot that is in flight or has not yet been allocated.
+	 * @return the ID of the first active slot.
+	 */
+	public synchronized long getFirstActiveSlot() {
+		return inFlight.isEmpty() ? tracker.fileID : inFlight.first().longValue();
+	}
+
+	/**
+	 * Get the ID of the next slot to be allocated.
+	 * @return the ID of the next slot.
+	 */
+	public synchronized long getNextFileID() {
+		return tracker.fileID;
+	}
+
+	/**
+	 * Advance the Tracker so that the next slot to be
+	 * allocated is at least the specified slot.
+	 * @param fileID the ID of the slot.
+	 */
+	public synchronized void skipTo(long fileID) {
+		if (fileID > tracker.fileID) tracker.fileID = fileID;
+		if (fileID > 0) slotLimit.reserve(fileID - 1);
+	}
+
+	/**
+	 * Get the persistent upper bound on the slots that have been allocated.
+	 * @return the slot above the highest slot that may have been allocated,
+	 * or -1 if it is unknown.
+	 */
+	public synchronized long getSlotLimit() {
+		return slotLimit.get();
+	}
+
+	//======================
+	//    Instances
+	//======================
+
+	/**
+	 * Get the Instance record corresponding to a UID.
+	 * @param uid the SOPInstanceUID.
+	 * @return the Instance, or null if no object with the UID is stored.
+	 */
+	public synchronized Instance getInstance(String uid) {
+		return getInstance( CompactUID.encode(uid) );
+	}
+
+	/**
+	 * Add an instance to the index, committing if the current batch is complete.
+	 * @param patientID the PatientID.
+	 * @param studyInstanceUID the StudyInstanceUID.
+	 * @param studyDate the StudyDate.
+	 * @param modality the Modality.
+	 * @param uid the SOPInstanceUID.
+	 * @param instance the Instance record.
+	 */
+	public synchronized void addInstance(String patientID,
+										 String studyInstanceUID,
+										 String studyDate,
+										 String modality,
+										 String uid,
+										 Instance instance) throws IOException {
+		putInstance(patientID, studyInstanceUID, studyDate, modality, uid, instance);
+		countUpdate();
+	}
+
+	/**
+	 * Add a group of instances to the index and commit.
+	 * @param instances the instances.
+	 */
+	public synchronized void addInstances(List<StoredInstance> instances) throws IOException {
+		for (StoredInstance si : instances) {
+			putInstance(si.patientID, si.studyInstanceUID, si.studyDate, si.modality, si.uid, si.instance);
+		}
+		commit();
+	}
+
+	private void putInstance(String patientID,
+							 String studyInstanceUID,
+							 String studyDate,
+							 String modality,
+							 String uid,
+							 Instance instance) throws IOException {
+		record( instanceRecord(CompactUID.encode(uid), instance.getBytes(), System.currentTimeMillis(),
+							   patientID, studyInstanceUID, studyDate, modality) );
+		if (syncOnCommit && (instance.getFile() != null)) unsynced.add(instance.getFile());
+	}
+
+	/**
+	 * Record that an instance has been accepted by the export destination.
+	 * The change is committed with the current batch.
+	 * @param uid the SOPInstanceUID.
+	 * @param digest the digest of the exported file, which is recorded
+	 * if the Instance does not already have one.
+	 */
+	public synchronized void setExported(String uid, String digest) {
+		try {
+			byte[] key = CompactUID.encode(uid);
+			Instance instance = getInstance(key);
+			if ((instance != null) && !instance.isExported()) {
+				if (!instance.hasDigest() && (digest != null)) {
+					instance = new Instance(instance.getFileID(), instance.getFile(), digest);
+				}
+				instance.setExported(true);
+				record( keyedRecord(EXPORTED, key, instance.getBytes()) );
+				countUpdate();
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to record the export of "+uid, ex); }
+	}
+
+	//======================
+	//    Patients
+	//======================
+
+	/**
+	 * Get a Patient by PatientID, with its Study headers but
+	 * without the instance UIDs of its studies.
+	 * @param patientID the PatientID.
+	 * @return the Patient, or null if the patient is not in the index.
+	 */
+	public synchronized Patient getPatient(String patientID) {
+		return getPatient(patientID, false);
+	}
+
+	/**
+	 * Get a Patient by PatientID.
+	 * @param patientID the PatientID.
+	 * @param withInstances true if the instance UIDs of the
+	 * patient's studies are to be loaded.
+	 * @return the Patient, or null if the patient is not in the index.
+	 */
+	public synchronized Patient getPatient(String patientID, boolean withInstances) {
+		Patient pt = state.patients.get(patientID);
+		return (pt != null) ? copy(pt, withInstances) : null;
+	}
+
+	/**
+	 * Store a Patient header and commit. Only the status, comment,
+	 * submission ID, and modification time are stored; the studies
+	 * of the patient in the index are not changed.
+	 * @param patient the Patient.
+	 */
+	public synchronized void putPatient(Patient patient) {
+		try {
+			record( patientRecord(patient) );
+			commit();
+		}
+		catch (Exception ex) { logger.warn("Unable to store patient "+patient.getPatientID(), ex); }
+	}
+
+	/**
+	 * Queue a Patient for export and commit.
+	 * @param patientID the PatientID.
+	 * @param comment the export comment.
+	 * @param submissionID the import event ID for the export.
+	 * @return true if the patient was queued; false if the patient is not in the index.
+	 */
+	public synchronized boolean queue(String patientID, String comment, String submissionID) throws IOException {
+		Patient pt = state.patients.get(patientID);
+		if (pt == null) return false;
+		Patient p = pt.getHeader();
+		p.setComment(comment);
+		p.setSubmissionID(submissionID);
+		p.setStatus(Status.PENDING);
+		record( patientRecord(p) );
+		commit();
+		return true;
+	}
+
+	/**
+	 * Set the Status of a Patient and commit.
+	 * @param patientID the PatientID.
+	 * @param status the new Status.
+	 */
+	public synchronized void setStatus(String patientID, Status status) {
+		try {
+			Patient pt = state.patients.get(patientID);
+			if (pt != null) {
+				Patient p = pt.getHeader();
+				p.setStatus(status);
+				record( patientRecord(p) );
+				commit();
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to set the status of "+patientID, ex); }
+	}
+
+	/**
+	 * Reset the Status of all failed Patients to Status.NONE and commit.
+	 */
+	public synchronized void resetFailures() {
+		try {
+			for (String ptid : getPatientIDs(StatusIndex.FAILED)) {
+				Patient p = state.patients.get(ptid).getHeader();
+				p.setStatus(Status.NONE);
+				record( patientRecord(p) );
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to reset the failed patients", ex); }
+		commit();
+	}
+
+	/**
+	 * Remove the instances of an exported Patient from the index and commit.
+	 * Only the instances in the supplied Patient are removed. If other
+	 * instances have been added to the patient since the caller obtained
+	 * its copy, the patient remains in the index with Status.NONE;
+	 * otherwise the patient is removed.
+	 * @param patient the Patient that was exported, as obtained from
+	 * getPatient(patientID, true).
+	 * @return the removed instances, whose files the caller must delete.
+	 */
+	public synchronized List<Instance> deletePatient(Patient patient) {
+		LinkedList<Instance> removed = new LinkedList<Instance>();
+		String ptid = patient.getPatientID();
+		try {
+			long time = System.currentTimeMillis();
+			LinkedList<byte[]> tombs = new LinkedList<byte[]>();
+			LinkedList<String> studyUIDs = new LinkedList<String>();
+			LinkedList<byte[]> keys = new LinkedList<byte[]>();
+			for (Study study : patient.getStudies()) {
+				for (String uid : study.getInstanceUIDs()) {
+					byte[] key = CompactUID.encode(uid);
+					Instance instance = getInstance(key);
+					if (instance != null) {
+						removed.add(instance);
+						if (keepTombstones && instance.isExported() && instance.hasDigest()) {
+							tombs.add( keyedRecord(TOMBSTONE, key, BufferIndex.getTombstone(time, instance)) );
+						}
+					}
+					studyUIDs.add(study.getStudyInstanceUID());
+					keys.add(key);
+				}
+			}
+			RecordBuilder rb = new RecordBuilder(DELETE);
+			rb.writeString(ptid);
+			rb.writeInt(keys.size());
+			Iterator<byte[]> kit = keys.iterator();
+			for (String studyUID : studyUIDs) {
+				rb.writeString(studyUID);
+				rb.writeBytes(kit.next());
+			}
+			record( rb.toByteArray() );
+			for (byte[] tomb : tombs) record(tomb);
+		}
+		catch (Exception ex) { logger.warn("Unable to delete patient "+ptid, ex); }
+		commit();
+		return removed;
+	}
+
+	/**
+	 * Get the PatientIDs of all the patients in the index.
+	 * @return the PatientIDs, in no particular order.
+	 */
+	public synchronized List<String> getAllPatientIDs() {
+		return new LinkedList<String>(state.patients.keySet());
+	}
+
+	/**
+	 * Get the PatientIDs in a status partition.
+	 * @param set the partition (StatusIndex.NONE, PENDING, or FAILED)
+	 * @return the PatientIDs in the partition, in PatientID order.
+	 */
+	public synchronized List<String> getPatientIDs(int set) {
+		return new LinkedList<String>(state.sets.get(set).keySet());
+	}
+
+	/**
+	 * Get a page of Patients, with their Study headers, from a status
+	 * partition. At most maxScan entries are examined, so a page can
+	 * contain fewer than the requested number of Patients even though
+	 * more remain. The cursor of the returned page is null only when
+	 * the partition has been exhausted.
+	 * @param query the query.
+	 * @param maxScan the maximum number of entries to examine.
+	 * @return the page.
+	 */
+	public synchronized PatientPage getPatients(PatientQuery query, int maxScan) {
+		LinkedList<Patient> page = new LinkedList<Patient>();
+		String prefix = (query.prefix != null) ? query.prefix : "";
+		String cursor = query.cursor;
+		String last = null;
+		boolean exhausted = false;
+		TreeMap<String,int[]> set = state.sets.get(query.set);
+		Iterator<String> it;
+		if (!query.descending) {
+			String start = (cursor != null) ? cursor : prefix;
+			it = set.tailMap(start, true).keySet().iterator();
+		}
+		else {
+			String start = cursor;
+			if ((start == null) && !prefix.equals("")) start = prefix + "\uffff";
+			it = ((start != null) ? set.headMap(start, false) : set).descendingKeySet().iterator();
+		}
+		int nScanned = 0;
+		while ((page.size() < query.limit) && (nScanned < maxScan)) {
+			if (!it.hasNext()) { exhausted = true; break; }
+			String ptid = it.next();
+			if (ptid.equals(cursor)) continue;
+			if (!ptid.startsWith(prefix)) { exhausted = true; break; }
+			nScanned++;
+			last = ptid;
+			Patient pt = state.patients.get(ptid);
+			if ((pt != null) && query.matches(pt)) page.add( copy(pt, false) );
+		}
+		return new PatientPage(page, exhausted ? null : ((last != null) ? last : cursor));
+	}
+
+	/**
+	 * Get the totals for a status partition.
+	 * @param set the partition (StatusIndex.NONE, PENDING, or FAILED)
+	 * @return an array containing the numbers of patients,
+	 * studies, and instances in the partition.
+	 */
+	public synchronized int[] getTotals(int set) {
+		int[] totals = new int[3];
+		for (int[] counts : state.sets.get(set).values()) {
+			totals[0]++;
+			totals[1] += counts[0];
+			totals[2] += counts[1];
+		}
+		return totals;
+	}
+
+	//======================
+	//    Tombstones
+	//======================
+
+	/**
+	 * Specify whether tombstones are recorded for the exported instances
+	 * that are removed from the index.
+	 * @param keepTombstones true if tombstones are to be recorded.
+	 */
+	public synchronized void setKeepTombstones(boolean keepTombstones) {
+		this.keepTombstones = keepTombstones;
+	}
+
+	/**
+	 * Get the digest of an exported instance that has been removed from the index.
+	 * @param uid the SOPInstanceUID.
+	 * @return the digest, or null if there is no tombstone for the instance.
+	 */
+	public synchronized String getExportedDigest(String uid) {
+		long offset = state.tombstones.get( CompactUID.encode(uid) );
+		return (offset >= 0) ? Instance.fromBytes(state.getValue(offset), tracker).getDigest() : null;
+	}
+
+	/**
+	 * Remove the tombstones that were recorded before a specified time, and commit.
+	 * @param time the time before which tombstones are removed.
+	 * @return the number of tombstones removed.
+	 */
+	public synchronized int removeTombstones(long time) {
+		int n = 0;
+		try {
+			for (long offset : state.tombstones.getOffsets()) {
+				if (BufferIndex.getTombstoneTime(state.getValue(offset)) < time) {
+					RecordBuilder rb = new RecordBuilder(UNTOMB);
+					rb.writeBytes(state.getKey(offset));
+					record( rb.toByteArray() );
+					n++;
+				}
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to remove tombstones", ex); }
+		if (n > 0) commit();
+		return n;
+	}
+
+	//======================
+	//    Export jobs
+	//======================
+
+	/**
+	 * Create an export job and commit.
+	 * @param patientIDs the PatientIDs of the patients to export.
+	 * @param comment the export comment.
+	 * @return the job.
+	 */
+	public synchronized ExportJob addJob(String[] patientIDs, String comment) throws IOException {
+		ExportJob job = new ExportJob(state.jobCounter + 1, patientIDs, comment);
+		record( jobRecord(job) );
+		commit();
+		return job.copy();
+	}
+
+	/**
+	 * Get an export job.
+	 * @param id the ID of the job.
+	 * @return the job, or null if the job is not in the index.
+	 */
+	public synchronized ExportJob getJob(long id) {
+		ExportJob job = state.jobs.get(id);
+		return (job != null) ? job.copy() : null;
+	}
+
+	/**
+	 * Store the progress of an export job and commit.
+	 * @param job the job.
+	 */
+	public synchronized void putJob(ExportJob job) {
+		try {
+			record( jobRecord(job.copy()) );
+			commit();
+		}
+		catch (Exception ex) { logger.warn("Unable to store export job "+job.getID(), ex); }
+	}
+
+	/**
+	 * Get the export jobs that have not been completed, in the order of submission.
+	 * @return the jobs.
+	 */
+	public synchronized List<ExportJob> getPendingJobs() {
+		LinkedList<ExportJob> list = new LinkedList<ExportJob>();
+		for (ExportJob job : state.jobs.values()) {
+			if (!job.isDone()) list.add(job.copy());
+		}
+		return list;
+	}
+
+	/**
+	 * Remove the export jobs that were completed before a specified time, and commit.
+	 * @param time the time before which completed jobs are removed.
+	 */
+	public synchronized void removeJobs(long time) {
+		try {
+			LinkedList<Long> ids = new LinkedList<Long>();
+			for (ExportJob job : state.jobs.values()) {
+				if (job.isDone() && (job.getCompletedTime() < time)) ids.add(job.getID());
+			}
+			for (Long id : ids) record( idRecord(REMOVEJOB, id) );
+			if (ids.size() > 0) commit();
+		}
+		catch (Exception ex) { logger.warn("Unable to remove the completed export jobs", ex); }
+	}
+
+}
@@ -0,0 +1,204 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.rsna.ctp.pipeline.Status;
+
+/**
+ * The in-memory state of a LogIndex, built by applying the records
+ * of its log in order. A checkpoint builds a second state from the
+ * log without holding the index, so this class does not depend on
+ * the index that uses it. It is not thread-safe.
+ */
+class LogState implements MappedLog.Reader {
+
+	MappedLog log;
+	final HashMap<String,Patient> patients = new HashMap<String,Patient>();
+	final ArrayList<TreeMap<String,int[]>> sets = new ArrayList<TreeMap<String,int[]>>();
+	OffsetTable instances;
+	OffsetTable tombstones;
+	final TreeMap<Long,ExportJob> jobs = new TreeMap<Long,ExportJob>();
+	long jobCounter = 0;
+	long committedSlot = 0;
+
+	/**
+	 * Create an empty state.
+	 * @param log the log containing the records that will be applied.
+	 */
+	LogState(MappedLog log) {
+		this.log = log;
+		for (int i=0; i<3; i++) sets.add( new TreeMap<String,int[]>() );
+		instances = new OffsetTable(log);
+		tombstones = new OffsetTable(log);
+	}
+
+	public void record(long offset, byte[] payload) throws IOException {
+		apply(payload, offset);
+	}
+
+	//Apply a log record. This is the only method that changes the
+	//state, so replaying the log reproduces the state at the time
+	//of the last record.
+	void apply(byte[] payload, long offset) throws IOException {
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream(payload) );
+		byte type = in.readByte();
+		if (type == LogIndex.INSTANCE) {
+			byte[] key = LogIndex.readBytes(in);
+			byte[] value = LogIndex.readBytes(in);
+			long time = in.readLong();
+			String ptid = LogIndex.readString(in);
+			String studyInstanceUID = LogIndex.readString(in);
+			String studyDate = LogIndex.readString(in);
+			String modality = LogIndex.readString(in);
+			Patient pt = patients.get(ptid);
+			if (pt == null) {
+				pt = new Patient(ptid);
+				patients.put(ptid, pt);
+			}
+			pt.lastModifiedTime = time;
+			Study st = pt.getStudy(studyInstanceUID);
+			if (st == null) {
+				st = new Study(studyInstanceUID, studyDate, modality);
+				pt.addStudy(studyInstanceUID, st);
+			}
+			st.instances.addEncoded(key, 0, key.length);
+			if (value.length > 0) instances.put(key, offset);
+			updateSet(pt);
+		}
+		else if (type == LogIndex.EXPORTED) instances.put(LogIndex.readBytes(in), offset);
+		else if (type == LogIndex.PATIENT) {
+			Patient pt = patients.get(LogIndex.readString(in));
+			if (pt != null) {
+				pt.status = LogIndex.getStatus(LogIndex.readString(in));
+				pt.comment = LogIndex.readString(in);
+				pt.submissionID = LogIndex.readString(in);
+				pt.lastModifiedTime = in.readLong();
+				updateSet(pt);
+			}
+		}
+		else if (type == LogIndex.DELETE) {
+			String ptid = LogIndex.readString(in);
+			Patient pt = patients.get(ptid);
+			HashMap<String,InstanceSet> removed = new HashMap<String,InstanceSet>();
+			int n = in.readInt();
+			for (int i=0; i<n; i++) {
+				String studyInstanceUID = LogIndex.readString(in);
+				byte[] key = LogIndex.readBytes(in);
+				instances.remove(key);
+				InstanceSet set = removed.get(studyInstanceUID);
+				if (set == null) {
+					set = new InstanceSet();
+					removed.put(studyInstanceUID, set);
+				}
+				set.addEncoded(key, 0, key.length);
+			}
+			if (pt != null) {
+				for (Map.Entry<String,InstanceSet> e : removed.entrySet()) {
+					Study st = pt.getStudy(e.getKey());
+					if (st != null) {
+						InstanceSet remaining = st.instances.without(e.getValue());
+						if (remaining.size() == 0) pt.removeStudy(e.getKey());
+						else st.setInstances(remaining);
+					}
+				}
+				if (pt.getNumberOfStudies() == 0) {
+					patients.remove(ptid);
+					for (TreeMap<String,int[]> set : sets) set.remove(ptid);
+				}
+				else {
+					pt.status = Status.NONE;
+					updateSet(pt);
+				}
+			}
+		}
+		else if (type == LogIndex.TOMBSTONE) tombstones.put(LogIndex.readBytes(in), offset);
+		else if (type == LogIndex.UNTOMB) tombstones.remove(LogIndex.readBytes(in));
+		else if (type == LogIndex.JOB) {
+			long id = in.readLong();
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			try {
+				ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream(bytes) );
+				jobs.put(id, (ExportJob)ois.readObject());
+			}
+			catch (ClassNotFoundException ex) { throw new IOException("Unable to load export job "+id, ex); }
+			jobCounter = Math.max(jobCounter, id);
+		}
+		else if (type == LogIndex.REMOVEJOB) jobs.remove(in.readLong());
+		else if (type == LogIndex.TRACKER) committedSlot = in.readLong();
+		else throw new IOException("Unknown log record type ("+type+") at "+offset);
+	}
+
+	//Place a Patient in the partition for its current Status.
+	private void updateSet(Patient pt) {
+		String ptid = pt.getPatientID();
+		int set = StatusIndex.getSet(pt.getStatus());
+		int nInstances = 0;
+		Study[] studies = pt.getStudies();
+		for (Study study : studies) nInstances += study.getNumberOfInstances();
+		for (int i=0; i<sets.size(); i++) {
+			if (i != set) sets.get(i).remove(ptid);
+		}
+		sets.get(set).put(ptid, new int[] { studies.length, nInstances });
+	}
+
+	//Get the UID of a record found by a UID.
+	byte[] getKey(long offset) {
+		ByteBuffer b = log.get(offset);
+		b.get();
+		byte[] key = new byte[b.getShort() & 0xFFFF];
+		b.get(key);
+		return key;
+	}
+
+	//Get the value of a record found by a UID.
+	byte[] getValue(long offset) {
+		ByteBuffer b = log.get(offset);
+		b.get();
+		int len = b.getShort() & 0xFFFF;
+		b.position(b.position() + len);
+		byte[] value = new byte[b.getShort() & 0xFFFF];
+		b.get(value);
+		return value;
+	}
+
+	//Write the state to a new log, which then becomes the log of the state.
+	//The offset tables are rebuilt for the new log as it is written.
+	void writeTo(MappedLog next) throws IOException {
+		OffsetTable nextInstances = new OffsetTable(next);
+		OffsetTable nextTombstones = new OffsetTable(next);
+		byte[] empty = new byte[0];
+		for (Patient pt : patients.values()) {
+			for (Study st : pt.getStudies()) {
+				for (String uid : st.instances.toArray()) {
+					byte[] key = CompactUID.encode(uid);
+					long offset = instances.get(key);
+					byte[] value = (offset >= 0) ? getValue(offset) : empty;
+					long newOffset = next.append(
+						LogIndex.instanceRecord(key, value, pt.getLastModifiedTime(), pt.getPatientID(),
+												st.getStudyInstanceUID(), st.getStudyDate(), st.getModality()) );
+					if (value.length > 0) nextInstances.put(key, newOffset);
+				}
+			}
+			next.append( LogIndex.patientRecord(pt) );
+		}
+		for (long offset : tombstones.getOffsets()) {
+			byte[] key = getKey(offset);
+			long newOffset = next.append( LogIndex.keyedRecord(LogIndex.TOMBSTONE, key, getValue(offset)) );
+			nextTombstones.put(key, newOffset);
+		}
+		for (ExportJob job : jobs.values()) next.append( LogIndex.jobRecord(job) );
+		next.append( LogIndex.idRecord(LogIndex.TRACKER, committedSlot) );
+		log = next;
+		instances = nextInstances;
+		tombstones = nextTombstones;
+	}
+
+}
@@ -0,0 +1,232 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records in a memory-mapped file.
+ * <p>
+ * The file is mapped in fixed-size segments, and a record never spans
+ * two segments. Each record is a four-byte payload length, the payload,
+ * and the CRC32 of the payload. A length of zero marks the end of the log,
+ * and a length of -1 marks the end of the records in a segment. Appending
+ * a record writes only to memory; force() writes the segments changed
+ * since the last force to the disk.
+ * <p>
+ * When the log is scanned, it ends at the first record that is incomplete
+ * or fails its checksum, and everything after that point is zeroed, so a
+ * record that was being written when the system failed is discarded.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class MappedLog {
+
+	public static final int defaultSegmentSize = 64 * 1024 * 1024;
+	static final int endOfSegment = -1;
+
+	/**
+	 * A receiver for the records found when a log is scanned.
+	 */
+	public interface Reader {
+		public void record(long offset, byte[] payload) throws IOException;
+	}
+
+	File file;
+	final int segmentSize;
+	final FileChannel channel;
+	final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	final CRC32 crc = new CRC32();
+	long position = 0;
+	int firstDirty = -1;
+
+	/**
+	 * Open a log, creating the file if necessary. The log must
+	 * be scanned before records are appended to it.
+	 * @param file the log file.
+	 * @param segmentSize the size of the mapped segments, which
+	 * limits the size of a record.
+	 */
+	public MappedLog(File file, int segmentSize) throws IOException {
+		this.file = file;
+		this.segmentSize = segmentSize;
+		channel = FileChannel.open(file.toPath(),
+								   StandardOpenOption.CREATE,
+								   StandardOpenOption.READ,
+								   StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Get the log file.
+	 * @return the file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Record the new name of the log file after it has been renamed.
+	 * The mapping of the file is not affected by the rename.
+	 * @param file the new name.
+	 */
+	public void renamedTo(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Get the length of the records in the log.
+	 * @return the offset at which the next record will be appended.
+	 */
+	public long length() {
+		return position;
+	}
+
+	/**
+	 * Read all the records in the log, in order, and position
+	 * the log for appending after the last valid record.
+	 * @param reader the receiver of the records.
+	 */
+	public void scan(Reader reader) throws IOException {
+		long size = channel.size();
+		position = Math.min(read(0, size, reader), size);
+		clearTail(size);
+	}
+
+	/**
+	 * Read the records in a range of the log, in order. This does not
+	 * change the log, so it can be used on a second MappedLog of a file
+	 * that is being appended, for a range that has already been written.
+	 * @param start the offset of the first record.
+	 * @param end the offset at which to stop.
+	 * @param reader the receiver of the records.
+	 * @return the offset after the last valid record that was read.
+	 */
+	public long read(long start, long end, Reader reader) throws IOException {
+		long pos = start;
+		while (pos < end) {
+			int off = (int)(pos % segmentSize);
+			ByteBuffer b = getSegment(pos).duplicate();
+			b.position(off);
+			int len = b.getInt();
+			if (len == 0) break;
+			if (len == endOfSegment) {
+				pos = pos - off + segmentSize;
+				continue;
+			}
+			if ((len < 0) || ((long)off + len + 8 > segmentSize)) break;
+			byte[] payload = new byte[len];
+			b.get(payload);
+			crc.reset();
+			crc.update(payload, 0, len);
+			if (b.getInt() != (int)crc.getValue()) break;
+			reader.record(pos, payload);
+			pos += len + 8;
+		}
+		return pos;
+	}
+
+	//Zero everything after the last valid record if it is not already zero.
+	private void clearTail(long size) {
+		long pos = position;
+		boolean dirty = false;
+		while (!dirty && (pos < size)) {
+			ByteBuffer b = getSegment(pos);
+			int end = (int)Math.min(segmentSize, size - (pos - pos % segmentSize));
+			for (int i=(int)(pos % segmentSize); i<end; i++) {
+				if (b.get(i) != 0) { dirty = true; break; }
+			}
+			pos = pos - pos % segmentSize + segmentSize;
+		}
+		if (!dirty) return;
+		pos = position;
+		while (pos < size) {
+			MappedByteBuffer b = getSegment(pos);
+			int end = (int)Math.min(segmentSize, size - (pos - pos % segmentSize));
+			for (int i=(int)(pos % segmentSize); i<end; i++) b.put(i, (byte)0);
+			markDirty(pos);
+			pos = pos - pos % segmentSize + segmentSize;
+		}
+	}
+
+	/**
+	 * Append a record to the log.
+	 * @param payload the contents of the record.
+	 * @return the offset of the record.
+	 */
+	public long append(byte[] payload) throws IOException {
+		int total = payload.length + 8;
+		if (total + 4 > segmentSize) throw new IOException("Log record too large ("+payload.length+" bytes)");
+		int off = (int)(position % segmentSize);
+		if (off + total + 4 > segmentSize) {
+			getSegment(position).putInt(off, endOfSegment);
+			markDirty(position);
+			position += segmentSize - off;
+			off = 0;
+		}
+		ByteBuffer b = getSegment(position).duplicate();
+		b.position(off);
+		b.putInt(payload.length);
+		b.put(payload);
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		b.putInt((int)crc.getValue());
+		markDirty(position);
+		long offset = position;
+		position += total;
+		return offset;
+	}
+
+	/**
+	 * Get a buffer positioned at the payload of a record.
+	 * @param offset the offset of the record.
+	 * @return the buffer.
+	 */
+	public ByteBuffer get(long offset) {
+		ByteBuffer b = getSegment(offset).duplicate();
+		b.position((int)(offset % segmentSize) + 4);
+		return b;
+	}
+
+	/**
+	 * Write the segments changed since the last force to the disk.
+	 */
+	public void force() {
+		if (firstDirty < 0) return;
+		for (int i=firstDirty; i<segments.size(); i++) segments.get(i).force();
+		firstDirty = -1;
+	}
+
+	/**
+	 * Force the log and close the file. The segments remain
+	 * mapped until they are garbage collected.
+	 */
+	public void close() throws IOException {
+		force();
+		channel.close();
+	}
+
+	private void markDirty(long pos) {
+		int seg = (int)(pos / segmentSize);
+		if ((firstDirty < 0) || (seg < firstDirty)) firstDirty = seg;
+	}
+
+	//Get the segment containing an offset, mapping
+	//new segments (and extending the file) as necessary.
+	private MappedByteBuffer getSegment(long pos) {
+		int seg = (int)(pos / segmentSize);
+		try {
+			while (segments.size() <= seg) {
+				long start = (long)segments.size() * segmentSize;
+				segments.add( channel.map(FileChannel.MapMode.READ_WRITE, start, segmentSize) );
+			}
+		}
+		catch (IOException ex) { throw new IllegalStateException("Unable to map the log", ex); }
+		return segments.get(seg);
+	}
+
+}
@@ -0,0 +1,143 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and throughput metrics for the hot paths of an IndexedDicomBuffer.
+ * All recording methods are lock-free so they can be called on every
+ * instance without contention. Times are recorded in nanoseconds and
+ * reported in microseconds.
+ */
+public class Metrics {
+	
+	public final Histogram store = new Histogram();
+	public final Histogram copy = new Histogram();
+	public final Histogram index = new Histogram();
+	public final Histogram commit = new Histogram();
+	public final Histogram export = new Histogram();
+	public final LongAdder exportBytes = new LongAdder();
+	final ConcurrentHashMap<Integer,LongAdder> responses = new ConcurrentHashMap<Integer,LongAdder>();
+	final long startTime = System.currentTimeMillis();
+	
+	/**
+	 * Count a response code from the destination.
+	 * @param code the HTTP response code, or zero if no response was received.
+	 */
+	public void response(int code) {
+		LongAdder count = responses.get(code);
+		if (count == null) {
+			LongAdder newCount = new LongAdder();
+			count = responses.putIfAbsent(code, newCount);
+			if (count == null) count = newCount;
+		}
+		count.increment();
+	}
+	
+	/**
+	 * Record the export of one file.
+	 * @param nanos the elapsed time of the transfer.
+	 * @param bytes the number of bytes sent.
+	 */
+	public void exported(long nanos, long bytes) {
+		export.record(nanos);
+		exportBytes.add(bytes);
+	}
+	
+	/**
+	 * Append the metrics to a JSON object under construction.
+	 * The caller supplies the opening and closing braces so
+	 * that it can add its own members.
+	 * @param sb the buffer to which to append the members.
+	 */
+	public void appendTo(StringBuilder sb) {
+		long bytes = exportBytes.sum();
+		long exportNanos = export.total.sum();
+		long uptime = Math.max(System.currentTimeMillis() - startTime, 1);
+		sb.append("\"uptimeMillis\":"+uptime);
+		sb.append(",\"store\":"); store.appendTo(sb);
+		sb.append(",\"copy\":"); copy.appendTo(sb);
+		sb.append(",\"index\":"); index.appendTo(sb);
+		sb.append(",\"commit\":"); commit.appendTo(sb);
+		sb.append(",\"export\":{");
+		sb.append("\"latency\":"); export.appendTo(sb);
+		sb.append(",\"bytes\":"+bytes);
+		sb.append(",\"bytesPerSecond\":"+((exportNanos > 0) ? (bytes * 1000000000L / exportNanos) : 0));
+		sb.append(",\"averageBytesPerSecond\":"+(bytes * 1000L / uptime));
+		sb.append(",\"responses\":{");
+		boolean first = true;
+		for (Map.Entry<Integer,LongAdder> e : new TreeMap<Integer,LongAdder>(responses).entrySet()) {
+			if (!first) sb.append(",");
+			sb.append("\""+e.getKey()+"\":"+e.getValue().sum());
+			first = false;
+		}
+		sb.append("}}");
+	}
+	
+	/**
+	 * A lock-free histogram with power-of-two buckets.
+	 * Bucket i counts the values v with 2^(i-1) &lt;= v/1000 &lt; 2^i,
+	 * so percentiles are accurate to within a factor of two.
+	 */
+	public static class Histogram {
+		static final int nBuckets = 48;
+		final AtomicLongArray buckets = new AtomicLongArray(nBuckets);
+		final LongAdder count = new LongAdder();
+		final LongAdder total = new LongAdder();
+		final AtomicLong max = new AtomicLong(0);
+		
+		/**
+		 * Record a value.
+		 * @param nanos the elapsed time in nanoseconds.
+		 */
+		public void record(long nanos) {
+			if (nanos < 0) nanos = 0;
+			long micros = nanos / 1000;
+			int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), nBuckets - 1);
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			total.add(nanos);
+			long m;
+			while (nanos > (m=max.get())) {
+				if (max.compareAndSet(m, nanos)) break;
+			}
+		}
+		
+		/**
+		 * Get the number of values recorded.
+		 * @return the number of values recorded.
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+		
+		//Get the upper bound (in microseconds) of the bucket
+		//containing the requested fraction of the values.
+		long percentile(double fraction, long n) {
+			long target = (long)Math.ceil(fraction * n);
+			long seen = 0;
+			for (int i=0; i<nBuckets; i++) {
+				seen += buckets.get(i);
+				if ((seen >= target) && (seen > 0)) return (i == 0) ? 0 : (1L << i);
+			}
+			return 0;
+		}
+		
+		void appendTo(StringBuilder sb) {
+			long n = count.sum();
+			long t = total.sum();
+			sb.append("{\"count\":"+n);
+			sb.append(",\"meanMicros\":"+((n > 0) ? (t / n / 1000) : 0));
+			sb.append(",\"maxMicros\":"+(max.get() / 1000));
+			sb.append(",\"p50Micros\":"+percentile(0.50, n));
+			sb.append(",\"p90Micros\":"+percentile(0.90, n));
+			sb.append(",\"p99Micros\":"+percentile(0.99, n));
+			sb.append("}");
+		}
+	}
+	
+}
@@ -0,0 +1,174 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A map from encoded SOPInstanceUIDs to the offsets of the records in
+ * a MappedLog that contain them, held in two primitive arrays.
+ * <p>
+ * The table stores only a 64-bit hash of each key, so an entry costs
+ * sixteen bytes rather than the several objects of a HashMap entry.
+ * A lookup that finds a matching hash confirms the key by reading it
+ * from the log record, whose payload starts with a type byte and the
+ * key preceded by its two-byte length. Collisions are resolved by
+ * linear probing, and removals shift the following entries back, so
+ * the table never contains deleted markers.
+ */
+public class OffsetTable {
+
+	final MappedLog log;
+	long[] hashes;
+	long[] offsets;
+	int size = 0;
+
+	/**
+	 * Create an empty table.
+	 * @param log the log containing the records.
+	 */
+	public OffsetTable(MappedLog log) {
+		this.log = log;
+		hashes = new long[1024];
+		offsets = new long[1024];
+	}
+
+	/**
+	 * Get the number of keys in the table.
+	 * @return the number of keys.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the offset of the record for a key.
+	 * @param key the encoded UID.
+	 * @return the offset, or -1 if the key is not in the table.
+	 */
+	public long get(byte[] key) {
+		int slot = find(key, hash(key));
+		return (slot >= 0) ? offsets[slot] : -1;
+	}
+
+	/**
+	 * Set the offset of the record for a key.
+	 * @param key the encoded UID.
+	 * @param offset the offset of the record.
+	 */
+	public void put(byte[] key, long offset) {
+		long h = hash(key);
+		int slot = find(key, h);
+		if (slot >= 0) {
+			offsets[slot] = offset;
+			return;
+		}
+		if (3 * (size + 1) > 2 * hashes.length) resize(2 * hashes.length);
+		slot = home(h);
+		while (hashes[slot] != 0) slot = (slot + 1) & (hashes.length - 1);
+		hashes[slot] = h;
+		offsets[slot] = offset;
+		size++;
+	}
+
+	/**
+	 * Remove a key from the table.
+	 * @param key the encoded UID.
+	 * @return the offset of the record for the key, or -1 if
+	 * the key was not in the table.
+	 */
+	public long remove(byte[] key) {
+		int slot = find(key, hash(key));
+		if (slot < 0) return -1;
+		long offset = offsets[slot];
+		int mask = hashes.length - 1;
+		int i = slot;
+		int j = slot;
+		while (true) {
+			j = (j + 1) & mask;
+			if (hashes[j] == 0) break;
+			int k = home(hashes[j]);
+			//Move the entry at j back to i unless its home
+			//slot lies cyclically in the range (i, j].
+			boolean stays = (i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j));
+			if (!stays) {
+				hashes[i] = hashes[j];
+				offsets[i] = offsets[j];
+				i = j;
+			}
+		}
+		hashes[i] = 0;
+		offsets[i] = 0;
+		size--;
+		return offset;
+	}
+
+	/**
+	 * Get the offsets of all the records in the table.
+	 * @return the offsets, in no particular order.
+	 */
+	public long[] getOffsets() {
+		long[] values = new long[size];
+		int n = 0;
+		for (int i=0; i<hashes.length; i++) {
+			if (hashes[i] != 0) values[n++] = offsets[i];
+		}
+		return values;
+	}
+
+	private int find(byte[] key, long h) {
+		int slot = home(h);
+		while (hashes[slot] != 0) {
+			if ((hashes[slot] == h) && matches(offsets[slot], key)) return slot;
+			slot = (slot + 1) & (hashes.length - 1);
+		}
+		return -1;
+	}
+
+	//Determine whether the record at an offset contains a key.
+	private boolean matches(long offset, byte[] key) {
+		ByteBuffer b = log.get(offset);
+		b.get();
+		int len = b.getShort() & 0xFFFF;
+		if (len != key.length) return false;
+		for (int i=0; i<len; i++) {
+			if (b.get() != key[i]) return false;
+		}
+		return true;
+	}
+
+	private int home(long h) {
+		return (int)(h ^ (h >>> 32)) & (hashes.length - 1);
+	}
+
+	//Hash a key with FNV-1a and the MurmurHash3 finalizer.
+	//Zero marks an empty slot, so it is never returned.
+	static long hash(byte[] key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			h ^= (b & 0xFF);
+			h *= 0x100000001b3L;
+		}
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb93fe5305b4dL;
+		h ^= (h >>> 33);
+		return (h != 0) ? h : 1;
+	}
+
+	private void resize(int capacity) {
+		long[] oldHashes = hashes;
+		long[] oldOffsets = offsets;
+		hashes = new long[capacity];
+		offsets = new long[capacity];
+		for (int i=0; i<oldHashes.length; i++) {
+			long h = oldHashes[i];
+			if (h != 0) {
+				int slot = home(h);
+				while (hashes[slot] != 0) slot = (slot + 1) & (capacity - 1);
+				hashes[slot] = h;
+				offsets[slot] = oldOffsets[i];
+			}
+		}
+	}
+
+}
@@ -7,9 +7,20 @@ import org.rsna.ctp.pipeline.Status;
 import org.rsna.util.StringUtil;
 import org.w3c.dom.*;
 
+/**
+ * A patient in an IndexedDicomBuffer.
+ * <p>
+ * In the index, a Patient is stored as a header containing the record IDs
+ * of its Study headers; the studyTable of the stored header is empty.
+ * In memory, the studyTable contains the Study objects loaded from the index.
+ * Records written before the normalized layout have no studyIDs and contain
+ * the full object graph in the studyTable.
+ */
 public class Patient implements Serializable, Comparable<Patient> {
+	static final long serialVersionUID = 5136198276002994633L;
 	String patientID;
 	Hashtable<String,Study> studyTable;
+	Hashtable<String,Long> studyIDs;
 	long lastModifiedTime = 0;
 	String comment = "";
 	String submissionID = "";
@@ -18,6 +29,30 @@ public class Patient implements Serializable, Comparable<Patient> {
 	public Patient(String patientID) {
 		this.patientID = patientID;
 		studyTable = new Hashtable<String,Study>();
+		studyIDs = new Hashtable<String,Long>();
+	}
+	
+	public synchronized Patient getHeader() {
+		Patient header = new Patient(patientID);
+		if (studyIDs != null) header.studyIDs.putAll(studyIDs);
+		header.lastModifiedTime = lastModifiedTime;
+		header.comment = comment;
+		header.submissionID = submissionID;
+		header.status = status;
+		return header;
+	}
+	
+	public synchronized boolean isLegacy() {
+		return (studyIDs == null);
+	}
+	
+	public synchronized Hashtable<String,Long> getStudyIDs() {
+		return (studyIDs != null) ? new Hashtable<String,Long>(studyIDs) : new Hashtable<String,Long>();
+	}
+	
+	public synchronized void addStudyID(String studyInstanceUID, long id) {
+		if (studyIDs == null) studyIDs = new Hashtable<String,Long>();
+		studyIDs.put(studyInstanceUID, id);
 	}
 	
 	public synchronized String getPatientID() {
@@ -65,12 +100,22 @@ public class Patient implements Serializable, Comparable<Patient> {
 	
 	public synchronized void addStudy(String studyInstanceUID, Study study) {
 		studyTable.put(studyInstanceUID, study);
+		if (study.getID() != 0) addStudyID(studyInstanceUID, study.getID());
+	}
+	
+	public synchronized void removeStudy(String studyInstanceUID) {
+		studyTable.remove(studyInstanceUID);
+		if (studyIDs != null) studyIDs.remove(studyInstanceUID);
 	}
 	
 	public void setLastModifiedTime() {
 		lastModifiedTime = System.currentTimeMillis();
 	}
 	
+	public long getLastModifiedTime() {
+		return lastModifiedTime;
+	}
+	
 	public int compareTo(Patient p) {
 		if (lastModifiedTime < p.lastModifiedTime) return -1;
 		if (lastModifiedTime > p.lastModifiedTime) return 1;
@@ -90,5 +135,34 @@ public class Patient implements Serializable, Comparable<Patient> {
 		parent.appendChild(p);
 	}
 	
+	public synchronized void appendTo(StringBuilder sb) {
+		sb.append("{\"patientID\":"+quote(patientID));
+		sb.append(",\"lastModified\":"+lastModifiedTime);
+		sb.append(",\"lastModifiedTime\":"+quote(StringUtil.getDateTime(lastModifiedTime," - ")));
+		sb.append(",\"status\":"+quote(status.toString()));
+		sb.append(",\"comment\":"+quote(comment));
+		sb.append(",\"studies\":[");
+		boolean first = true;
+		for (Study s : getStudies()) {
+			if (!first) sb.append(",");
+			s.appendTo(sb);
+			first = false;
+		}
+		sb.append("]}");
+	}
+	
+	static String quote(String s) {
+		if (s == null) return "null";
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == '"') || (c == '\\')) sb.append('\\').append(c);
+			else if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+			else sb.append(c);
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+	
 }
-
@@ -0,0 +1,30 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A set of striped locks keyed by PatientID. Operations on the same
+ * patient always obtain the same lock, so they are serialized, while
+ * operations on different patients usually obtain different locks and
+ * can proceed in parallel.
+ */
+public class PatientLocks {
+	final ReentrantLock[] locks;
+	
+	public PatientLocks(int nStripes) {
+		locks = new ReentrantLock[Math.max(nStripes, 1)];
+		for (int i=0; i<locks.length; i++) locks[i] = new ReentrantLock();
+	}
+	
+	/**
+	 * Get the lock for a patient.
+	 * @param patientID the PatientID
+	 * @return the lock for the stripe containing the patient.
+	 */
+	public ReentrantLock get(String patientID) {
+		int h = (patientID != null) ? patientID.hashCode() : 0;
+		h ^= (h >>> 16);
+		return locks[ (h & 0x7fffffff) % locks.length ];
+	}
+	
+}
@@ -0,0 +1,48 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.util.List;
+
+/**
+ * A page of Patients returned for a PatientQuery.
+ */
+public class PatientPage {
+	final List<Patient> patients;
+	final String cursor;
+	
+	/**
+	 * Create a page.
+	 * @param patients the Patients on the page.
+	 * @param cursor the cursor for the next page, or null if
+	 * there are no more Patients.
+	 */
+	public PatientPage(List<Patient> patients, String cursor) {
+		this.patients = patients;
+		this.cursor = cursor;
+	}
+	
+	public List<Patient> getPatients() {
+		return patients;
+	}
+	
+	public String getCursor() {
+		return cursor;
+	}
+	
+	/**
+	 * Append the page to a JSON buffer.
+	 * @param sb the buffer.
+	 */
+	public void appendTo(StringBuilder sb) {
+		sb.append("{\"patients\":[");
+		boolean first = true;
+		for (Patient p : patients) {
+			if (!first) sb.append(",");
+			p.appendTo(sb);
+			first = false;
+		}
+		sb.append("],\"cursor\":");
+		sb.append((cursor != null) ? Patient.quote(cursor) : "null");
+		sb.append("}");
+	}
+	
+}
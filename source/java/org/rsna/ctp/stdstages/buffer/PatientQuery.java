@@ -0,0 +1,42 @@
+package org.rsna.ctp.stdstages.buffer;
+
+/**
+ * The parameters of a request for a page of Patients from
+ * a status index partition. Patients are returned in PatientID
+ * order, starting after the cursor returned with the previous page.
+ */
+public class PatientQuery {
+	public int set = StatusIndex.NONE;
+	public String prefix = "";
+	public String cursor = null;
+	public boolean descending = false;
+	public long from = 0;
+	public long to = Long.MAX_VALUE;
+	public int limit = 100;
+	
+	public PatientQuery() { }
+	
+	/**
+	 * Get the partition for a status name.
+	 * @param name the name of the status (none, pending, or failed).
+	 * @return the partition, or StatusIndex.NONE if the name is not recognized.
+	 */
+	public static int getSet(String name) {
+		if (name == null) return StatusIndex.NONE;
+		name = name.trim().toLowerCase();
+		if (name.equals("pending")) return StatusIndex.PENDING;
+		if (name.equals("failed")) return StatusIndex.FAILED;
+		return StatusIndex.NONE;
+	}
+	
+	/**
+	 * Determine whether a Patient's last modification time is in the range of the query.
+	 * @param patient the Patient.
+	 * @return true if the Patient was last modified in the range [from, to].
+	 */
+	public boolean matches(Patient patient) {
+		long time = patient.getLastModifiedTime();
+		return (time >= from) && (time <= to);
+	}
+	
+}
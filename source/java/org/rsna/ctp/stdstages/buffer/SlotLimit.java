@@ -0,0 +1,94 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.apache.log4j.Logger;
+
+/**
+ * A persistent upper bound on the store slots that have been allocated.
+ * <p>
+ * The committed Tracker position only says where the uncommitted slots
+ * begin. Slots are reserved in blocks, and the end of a block is written
+ * to a file and forced to the disk before any slot in the block is handed
+ * out, so after a crash every slot that may contain a file is below the
+ * limit, and recovery can stop there instead of guessing at the gap.
+ * <p>
+ * The file is kept in the index directory beside the index files, so
+ * it survives the discarding of a corrupt index. This class is not
+ * thread-safe; the indexes call it while holding their monitors.
+ */
+public class SlotLimit {
+
+	static final Logger logger = Logger.getLogger(SlotLimit.class);
+
+	static final String fileName = "__slots";
+	static final int blockSize = 1024;
+
+	final File file;
+	long limit = -1;
+
+	/**
+	 * Load the limit from the index directory.
+	 * @param indexDir the directory containing the index files.
+	 */
+	public SlotLimit(File indexDir) {
+		file = new File(indexDir, fileName);
+		if (file.exists()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream( new FileInputStream(file) );
+				limit = in.readLong();
+			}
+			catch (Exception ex) { logger.warn("Unable to read the slot limit from "+file, ex); }
+			finally {
+				try { if (in != null) in.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	/**
+	 * Get the limit.
+	 * @return the slot above the highest slot that may have been
+	 * allocated, or -1 if the limit is unknown because the store
+	 * was created before the limit was recorded.
+	 */
+	public long get() {
+		return limit;
+	}
+
+	/**
+	 * Make sure that a slot is below the limit, reserving a new block
+	 * if necessary. The new limit is durable when this method returns.
+	 * If it cannot be written, the old limit is kept and the reservation
+	 * is attempted again for the next slot.
+	 * @param fileID the slot that is about to be used.
+	 */
+	public void reserve(long fileID) {
+		if (fileID < limit) return;
+		long next = fileID + blockSize;
+		File temp = new File(file.getParentFile(), fileName + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				ByteBuffer b = ByteBuffer.allocate(8);
+				b.putLong(next);
+				out.write(b.array());
+				out.getChannel().force(true);
+			}
+			finally { out.close(); }
+			Files.move(temp.toPath(), file.toPath(),
+					   StandardCopyOption.REPLACE_EXISTING,
+					   StandardCopyOption.ATOMIC_MOVE);
+			limit = next;
+		}
+		catch (IOException ex) { logger.warn("Unable to write the slot limit to "+file, ex); }
+	}
+
+}
@@ -0,0 +1,137 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.helper.StringComparator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import org.rsna.ctp.pipeline.Status;
+
+/**
+ * A persistent index of patients partitioned by export status.
+ * Each partition is a BTree in the same RecordManager as the
+ * patientIndex, so it is committed in the same transaction as
+ * the Patient records. The keys are PatientIDs, and the values
+ * are int arrays containing the number of studies and instances
+ * of the patient.
+ */
+public class StatusIndex {
+	public static final int NONE = 0;
+	public static final int PENDING = 1;
+	public static final int FAILED = 2;
+	static final String[] names = { "statusNone", "statusPending", "statusFailed" };
+	
+	BTree[] sets;
+	boolean created = false;
+	
+	public StatusIndex(RecordManager recman) throws IOException {
+		sets = new BTree[names.length];
+		for (int i=0; i<names.length; i++) {
+			long recid = recman.getNamedObject(names[i]);
+			if (recid != 0) sets[i] = BTree.load(recman, recid);
+			else {
+				sets[i] = BTree.createInstance(recman, new StringComparator());
+				recman.setNamedObject(names[i], sets[i].getRecid());
+				created = true;
+			}
+		}
+	}
+	
+	/**
+	 * Determine whether the index was created when it was opened,
+	 * in which case it must be populated from the patientIndex.
+	 * @return true if the index was created when it was opened.
+	 */
+	public boolean isNew() {
+		return created;
+	}
+	
+	/**
+	 * Get the partition for a Status.
+	 * @param status the Status
+	 * @return NONE, PENDING, or FAILED.
+	 */
+	public static int getSet(Status status) {
+		if (status.is(Status.NONE)) return NONE;
+		if (status.is(Status.PENDING)) return PENDING;
+		return FAILED;
+	}
+	
+	/**
+	 * Place a Patient in the partition for its current Status,
+	 * removing it from any other partition.
+	 * @param patient the Patient
+	 */
+	public void put(Patient patient) throws IOException {
+		String ptid = patient.getPatientID();
+		int set = getSet(patient.getStatus());
+		int nInstances = 0;
+		Study[] studies = patient.getStudies();
+		for (Study study : studies) nInstances += study.getNumberOfInstances();
+		for (int i=0; i<sets.length; i++) {
+			if (i != set) remove(sets[i], ptid);
+		}
+		sets[set].insert(ptid, new int[] { studies.length, nInstances }, true);
+	}
+	
+	/**
+	 * Remove a Patient from all partitions.
+	 * @param patientID the PatientID
+	 */
+	public void remove(String patientID) throws IOException {
+		for (BTree tree : sets) remove(tree, patientID);
+	}
+	
+	private void remove(BTree tree, String key) throws IOException {
+		if (tree.find(key) != null) tree.remove(key);
+	}
+	
+	/**
+	 * Get the PatientIDs in a partition, in PatientID order.
+	 * @param set the partition (NONE, PENDING, or FAILED)
+	 * @return the PatientIDs in the partition.
+	 */
+	public List<String> getPatientIDs(int set) throws IOException {
+		LinkedList<String> list = new LinkedList<String>();
+		TupleBrowser browser = sets[set].browse();
+		Tuple tuple = new Tuple();
+		while (browser.getNext(tuple)) {
+			list.add( (String)tuple.getKey() );
+		}
+		return list;
+	}
+	
+	/**
+	 * Get a browser positioned at a key in a partition.
+	 * @param set the partition (NONE, PENDING, or FAILED)
+	 * @param key the PatientID at which to position the browser,
+	 * or null to position it after the last entry.
+	 * @return the browser.
+	 */
+	public TupleBrowser browse(int set, String key) throws IOException {
+		return sets[set].browse(key);
+	}
+	
+	/**
+	 * Get the totals for a partition.
+	 * @param set the partition (NONE, PENDING, or FAILED)
+	 * @return an array containing the numbers of patients,
+	 * studies, and instances in the partition.
+	 */
+	public int[] getTotals(int set) throws IOException {
+		int[] totals = new int[3];
+		TupleBrowser browser = sets[set].browse();
+		Tuple tuple = new Tuple();
+		while (browser.getNext(tuple)) {
+			int[] counts = (int[])tuple.getValue();
+			totals[0]++;
+			totals[1] += counts[0];
+			totals[2] += counts[1];
+		}
+		return totals;
+	}
+	
+}
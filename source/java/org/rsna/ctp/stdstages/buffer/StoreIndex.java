@@ -0,0 +1,303 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.IOException;
+import java.util.List;
+import org.rsna.ctp.pipeline.Status;
+
+/**
+ * The index of an IndexedDicomBuffer: the patients, studies, and
+ * instances in the store, the allocation of store slots, the export
+ * jobs, and the tombstones of exported instances.
+ * <p>
+ * Implementations synchronize every method on the index object, so a
+ * caller can make a sequence of calls atomic by synchronizing on it.
+ * Updates are durable once they have been committed. Methods that do
+ * not state that they commit leave their updates in the current batch.
+ * <p>
+ * Two implementations are provided: BufferIndex, which keeps the index
+ * in a JDBM database, and LogIndex, which keeps it in memory and records
+ * its updates in an append-only, memory-mapped log.
+ */
+public interface StoreIndex {
+
+	//======================
+	//    Commits
+	//======================
+
+	/**
+	 * Commit all pending updates, including the Tracker position.
+	 */
+	public void commit();
+
+	/**
+	 * Commit the current batch if it has been open for longer
+	 * than the commit interval.
+	 */
+	public void flush();
+
+	/**
+	 * Get the number of instances added since the last commit.
+	 * @return the number of uncommitted instances.
+	 */
+	public int getUncommitted();
+
+	/**
+	 * Specify whether the files of the instances added in a batch are
+	 * forced to the disk before the batch is committed.
+	 * @param syncOnCommit true if the files are to be forced at commit.
+	 */
+	public void setSyncOnCommit(boolean syncOnCommit);
+
+	/**
+	 * Commit and close the index.
+	 */
+	public void close();
+
+	/**
+	 * Start an online compaction of the index.
+	 * @return the task performing the compaction, or null if a
+	 * compaction is already in progress.
+	 */
+	public IndexTask compact();
+
+	//======================
+	//    Store slots
+	//======================
+
+	/**
+	 * Get the Tracker that allocates the store slots.
+	 * @return the Tracker.
+	 */
+	public Tracker getTracker();
+
+	/**
+	 * Allocate a store slot for a new file. The slot is in flight,
+	 * holding back the committed Tracker position, until it is released.
+	 * @return the slot ID.
+	 */
+	public long allocate();
+
+	/**
+	 * Release a slot allocated by allocate().
+	 * @param fileID the slot ID.
+	 */
+	public void release(long fileID);
+
+	/**
+	 * Get the lowest slot that is allocated but not yet indexed.
+	 * @return the slot ID.
+	 */
+	public long getFirstActiveSlot();
+
+	/**
+	 * Get the next slot to be allocated.
+	 * @return the slot ID.
+	 */
+	public long getNextFileID();
+
+	/**
+	 * Advance the Tracker so that the next slot to be
+	 * allocated is at least a specified slot.
+	 * @param fileID the slot ID.
+	 */
+	public void skipTo(long fileID);
+
+	/**
+	 * Get the persistent upper bound on the slots that have been
+	 * allocated, which limits the search for uncommitted files.
+	 * @return the slot above the highest slot that may have been
+	 * allocated, or -1 if it is unknown.
+	 */
+	public long getSlotLimit();
+
+	//======================
+	//    Instances
+	//======================
+
+	/**
+	 * Get the Instance record corresponding to a UID.
+	 * @param uid the SOPInstanceUID.
+	 * @return the Instance, or null if no object with the UID is stored.
+	 */
+	public Instance getInstance(String uid);
+
+	/**
+	 * Add an instance to the index, committing if the current batch is complete.
+	 * @param patientID the PatientID.
+	 * @param studyInstanceUID the StudyInstanceUID.
+	 * @param studyDate the StudyDate.
+	 * @param modality the Modality.
+	 * @param uid the SOPInstanceUID.
+	 * @param instance the Instance record.
+	 */
+	public void addInstance(String patientID,
+							String studyInstanceUID,
+							String studyDate,
+							String modality,
+							String uid,
+							Instance instance) throws IOException;
+
+	/**
+	 * Add a group of instances to the index and commit.
+	 * @param instances the instances.
+	 */
+	public void addInstances(List<StoredInstance> instances) throws IOException;
+
+	/**
+	 * Record that an instance has been accepted by the export destination.
+	 * @param uid the SOPInstanceUID.
+	 * @param digest the digest of the exported file, which is recorded
+	 * if the Instance does not already have one.
+	 */
+	public void setExported(String uid, String digest);
+
+	//======================
+	//    Patients
+	//======================
+
+	/**
+	 * Get a Patient with its Study headers but without
+	 * the instance UIDs of its studies.
+	 * @param patientID the PatientID.
+	 * @return the Patient, or null if the patient is not in the index.
+	 */
+	public Patient getPatient(String patientID);
+
+	/**
+	 * Get a Patient.
+	 * @param patientID the PatientID.
+	 * @param withInstances true if the instance UIDs of the
+	 * patient's studies are to be loaded.
+	 * @return the Patient, or null if the patient is not in the index.
+	 */
+	public Patient getPatient(String patientID, boolean withInstances);
+
+	/**
+	 * Store a Patient header and commit.
+	 * @param patient the Patient.
+	 */
+	public void putPatient(Patient patient);
+
+	/**
+	 * Queue a Patient for export and commit.
+	 * @param patientID the PatientID.
+	 * @param comment the export comment.
+	 * @param submissionID the import event ID for the export.
+	 * @return true if the patient was queued; false if the patient is not in the index.
+	 */
+	public boolean queue(String patientID, String comment, String submissionID) throws IOException;
+
+	/**
+	 * Set the Status of a Patient and commit.
+	 * @param patientID the PatientID.
+	 * @param status the new Status.
+	 */
+	public void setStatus(String patientID, Status status);
+
+	/**
+	 * Reset the Status of all failed Patients to Status.NONE and commit.
+	 */
+	public void resetFailures();
+
+	/**
+	 * Remove the instances of an exported Patient from the index and commit.
+	 * Only the instances in the supplied Patient are removed; if others
+	 * remain, the patient stays in the index with Status.NONE.
+	 * @param patient the Patient that was exported, as obtained from
+	 * getPatient(patientID, true).
+	 * @return the removed instances, whose files the caller must delete.
+	 */
+	public List<Instance> deletePatient(Patient patient);
+
+	/**
+	 * Get the PatientIDs of all the patients in the index.
+	 * @return the PatientIDs.
+	 */
+	public List<String> getAllPatientIDs() throws IOException;
+
+	/**
+	 * Get the PatientIDs in a status partition.
+	 * @param set the partition (StatusIndex.NONE, PENDING, or FAILED)
+	 * @return the PatientIDs in the partition, in PatientID order.
+	 */
+	public List<String> getPatientIDs(int set);
+
+	/**
+	 * Get a page of Patients, with their Study headers, from a status partition.
+	 * @param query the parameters of the page.
+	 * @param maxScan the maximum number of entries to examine.
+	 * @return the page.
+	 */
+	public PatientPage getPatients(PatientQuery query, int maxScan);
+
+	/**
+	 * Get the totals for a status partition.
+	 * @param set the partition (StatusIndex.NONE, PENDING, or FAILED)
+	 * @return an array containing the numbers of patients,
+	 * studies, and instances in the partition.
+	 */
+	public int[] getTotals(int set);
+
+	//======================
+	//    Tombstones
+	//======================
+
+	/**
+	 * Specify whether tombstones are recorded for the exported
+	 * instances that are removed from the index.
+	 * @param keepTombstones true if tombstones are to be recorded.
+	 */
+	public void setKeepTombstones(boolean keepTombstones);
+
+	/**
+	 * Get the digest of an exported instance that has been removed from the index.
+	 * @param uid the SOPInstanceUID.
+	 * @return the digest, or null if there is no tombstone for the instance.
+	 */
+	public String getExportedDigest(String uid);
+
+	/**
+	 * Remove the tombstones that were recorded before a specified time, and commit.
+	 * @param time the time before which tombstones are removed.
+	 * @return the number of tombstones removed.
+	 */
+	public int removeTombstones(long time);
+
+	//======================
+	//    Export jobs
+	//======================
+
+	/**
+	 * Create an export job and commit.
+	 * @param patientIDs the PatientIDs of the patients to export.
+	 * @param comment the export comment.
+	 * @return the job.
+	 */
+	public ExportJob addJob(String[] patientIDs, String comment) throws IOException;
+
+	/**
+	 * Get an export job.
+	 * @param id the ID of the job.
+	 * @return the job, or null if the job is not in the index.
+	 */
+	public ExportJob getJob(long id);
+
+	/**
+	 * Store the progress of an export job and commit.
+	 * @param job the job.
+	 */
+	public void putJob(ExportJob job);
+
+	/**
+	 * Get the export jobs that have not been completed, in the order of submission.
+	 * @return the jobs.
+	 */
+	public List<ExportJob> getPendingJobs();
+
+	/**
+	 * Remove the export jobs that were completed before a specified time, and commit.
+	 * @param time the time before which completed jobs are removed.
+	 */
+	public void removeJobs(long time);
+
+}
@@ -0,0 +1,239 @@
+package org.rsna.ctp.stdstages.buffer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * Static methods for files that may be compressed in the store.
+ * <p>
+ * A compressed file starts with a twelve-byte header: the four bytes
+ * "DCZ1" followed by the eight-byte length of the original file. The
+ * rest of the file is the original file in the zlib format produced by
+ * java.util.zip.Deflater, which is also the body of an HTTP message with
+ * Content-Encoding: deflate. Files without the header are not compressed,
+ * so stores that contain both kinds of files can be read.
+ */
+public class StoredFile {
+
+	static final byte[] magic = { 'D', 'C', 'Z', '1' };
+	public static final int headerLength = 12;
+	static final long prefixLength = 64 * 1024;
+
+	/**
+	 * Compress a file, computing the digest of the original file as it is read.
+	 * @param inFile the file to compress.
+	 * @param outFile the compressed file.
+	 * @param level the Deflater compression level.
+	 * @param md the MessageDigest to update with the contents of the original file.
+	 * @param buffer the buffer to use for reading the original file.
+	 * @param sync true if the compressed file is to be forced to the disk.
+	 * @return the length of the compressed file.
+	 */
+	public static long compress(File inFile, File outFile, int level, MessageDigest md, byte[] buffer, boolean sync) throws IOException {
+		FileInputStream in = new FileInputStream(inFile);
+		FileOutputStream fos = null;
+		Deflater deflater = new Deflater(level);
+		try {
+			fos = new FileOutputStream(outFile);
+			byte[] header = new byte[headerLength];
+			System.arraycopy(magic, 0, header, 0, magic.length);
+			long length = inFile.length();
+			for (int i=0; i<8; i++) header[4 + i] = (byte)(length >>> (56 - 8*i));
+			fos.write(header);
+			DeflaterOutputStream out = new DeflaterOutputStream(fos, deflater, buffer.length);
+			int n;
+			while ( (n=in.read(buffer)) != -1 ) {
+				md.update(buffer, 0, n);
+				out.write(buffer, 0, n);
+			}
+			out.finish();
+			out.flush();
+			if (sync) fos.getFD().sync();
+			return fos.getChannel().position();
+		}
+		finally {
+			deflater.end();
+			in.close();
+			if (fos != null) fos.close();
+		}
+	}
+
+	/**
+	 * Determine whether a file is compressed.
+	 * @param file the file.
+	 * @return true if the file starts with the header of a compressed file.
+	 */
+	public static boolean isCompressed(File file) {
+		return (readHeader(file) != null);
+	}
+
+	/**
+	 * Get the length of the original file.
+	 * @param file the stored file.
+	 * @return the length of the original file if the file is compressed,
+	 * or the length of the file otherwise.
+	 */
+	public static long getLength(File file) {
+		byte[] header = readHeader(file);
+		if (header == null) return file.length();
+		long length = 0;
+		for (int i=0; i<8; i++) length = (length << 8) | (header[4 + i] & 0xFF);
+		return length;
+	}
+
+	//Read the header of a compressed file, or return null if
+	//the file is not compressed or cannot be read.
+	private static byte[] readHeader(File file) {
+		if (file.length() < headerLength) return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream( new FileInputStream(file) );
+			byte[] header = new byte[headerLength];
+			in.readFully(header);
+			for (int i=0; i<magic.length; i++) {
+				if (header[i] != magic[i]) return null;
+			}
+			return header;
+		}
+		catch (Exception ex) { return null; }
+		finally {
+			try { if (in != null) in.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	/**
+	 * Open a stored file for reading its original contents.
+	 * @param file the stored file.
+	 * @param bufferSize the size of the inflater's input buffer.
+	 * @return a stream that inflates the file if it is compressed.
+	 */
+	public static InputStream open(File file, int bufferSize) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (!isCompressed(file)) return in;
+		skipHeader(in);
+		return new InflaterInputStream(in, new Inflater(), bufferSize) {
+			public void close() throws IOException {
+				super.close();
+				inf.end();
+			}
+		};
+	}
+
+	/**
+	 * Open a compressed file for reading its compressed contents,
+	 * positioned after the header.
+	 * @param file the compressed file.
+	 * @return the stream.
+	 */
+	public static InputStream openCompressed(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		skipHeader(in);
+		return in;
+	}
+
+	private static void skipHeader(InputStream in) throws IOException {
+		try { new DataInputStream(in).readFully(new byte[headerLength]); }
+		catch (IOException ex) {
+			in.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Compute the MD5 digest of the original contents of a stored file.
+	 * @param file the stored file.
+	 * @param bufferSize the size of the read buffer.
+	 * @return the digest.
+	 */
+	public static byte[] digest(File file, int bufferSize) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		InputStream in = open(file, bufferSize);
+		try {
+			byte[] buffer = new byte[bufferSize];
+			int n;
+			while ( (n=in.read(buffer)) != -1 ) {
+				md.update(buffer, 0, n);
+			}
+		}
+		finally { in.close(); }
+		return md.digest();
+	}
+
+	/**
+	 * Write the original contents of a stored file to another file.
+	 * @param file the stored file.
+	 * @param outFile the file to write.
+	 */
+	public static void expand(File file, File outFile) throws IOException {
+		expand(file, outFile, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Write the start of the original contents of a stored file to another file.
+	 * @param file the stored file.
+	 * @param outFile the file to write.
+	 * @param limit the maximum number of bytes to write.
+	 * @return true if the whole of the original contents was written.
+	 */
+	public static boolean expand(File file, File outFile, long limit) throws IOException {
+		InputStream in = open(file, 64 * 1024);
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(outFile);
+			byte[] buffer = new byte[64 * 1024];
+			long remaining = limit;
+			int n;
+			while ( (remaining > 0) && ((n=in.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1) ) {
+				out.write(buffer, 0, n);
+				remaining -= n;
+			}
+			return (remaining > 0) || (in.read() == -1);
+		}
+		finally {
+			in.close();
+			if (out != null) out.close();
+		}
+	}
+
+	/**
+	 * Parse a stored file, which may be compressed. The index needs only
+	 * the elements before the pixel data, so a compressed file is inflated
+	 * into a temporary file only as far as necessary: prefixes of growing
+	 * length are tried until the elements through the StudyInstanceUID
+	 * have been parsed, and the whole file is inflated only if that fails.
+	 * The temporary file is deleted, so only the elements of the returned
+	 * object can be used.
+	 * @param file the stored file.
+	 * @return the parsed object.
+	 * @throws Exception if the file cannot be parsed.
+	 */
+	public static DicomObject parse(File file) throws Exception {
+		if (!isCompressed(file)) return new DicomObject(file);
+		File temp = File.createTempFile("SF-", ".dcm");
+		try {
+			for (long limit=prefixLength; ; limit*=4) {
+				boolean complete = expand(file, temp, limit);
+				try {
+					DicomObject dob = new DicomObject(temp);
+					String studyInstanceUID = dob.getStudyInstanceUID();
+					if (complete || ((studyInstanceUID != null) && !studyInstanceUID.equals(""))) return dob;
+				}
+				catch (Exception ex) { if (complete) throw ex; }
+			}
+		}
+		finally { temp.delete(); }
+	}
+
+}
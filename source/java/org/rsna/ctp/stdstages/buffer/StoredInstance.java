@@ -0,0 +1,28 @@
+package org.rsna.ctp.stdstages.buffer;
+
+/**
+ * The identifiers of a stored instance, as read from
+ * its file, and its Instance record.
+ */
+public class StoredInstance {
+	public final String patientID;
+	public final String studyInstanceUID;
+	public final String studyDate;
+	public final String modality;
+	public final String uid;
+	public final Instance instance;
+	
+	public StoredInstance(String patientID, 
+						  String studyInstanceUID, 
+						  String studyDate, 
+						  String modality, 
+						  String uid, 
+						  Instance instance) {
+		this.patientID = patientID;
+		this.studyInstanceUID = studyInstanceUID;
+		this.studyDate = studyDate;
+		this.modality = modality;
+		this.uid = uid;
+		this.instance = instance;
+	}
+}
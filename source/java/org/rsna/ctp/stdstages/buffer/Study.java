@@ -4,29 +4,87 @@ import java.io.Serializable;
 import java.util.HashSet;
 import org.w3c.dom.*;
 
+/**
+ * A study in an IndexedDicomBuffer.
+ * <p>
+ * In the index, a Study is stored as a header record containing only the
+ * number of instances; its instanceTable is null, and the instance UIDs
+ * are kept as separate membership records. The ID of a Study is the record
+ * ID of its header. Records written before the normalized layout contain
+ * the full instanceTable.
+ * <p>
+ * In memory, the instance UIDs of a Study are held in a compact
+ * InstanceSet, which is never serialized.
+ */
 public class Study implements Comparable<Study>, Serializable {
+	static final long serialVersionUID = -7691575876401380169L;
 	String studyInstanceUID;
 	String studyDate;
 	String modality;
 	HashSet<String> instanceTable;
+	int nInstances = 0;
+	transient long id = 0;
+	transient InstanceSet instances;
 	
 	public Study(String studyInstanceUID, String studyDate, String modality) {
 		this.studyInstanceUID = studyInstanceUID;
 		this.studyDate = studyDate;
 		this.modality = modality;
-		instanceTable = new HashSet<String>();
+		instanceTable = null;
+		instances = new InstanceSet();
+	}
+	
+	public synchronized Study getHeader() {
+		Study header = new Study(studyInstanceUID, studyDate, modality);
+		header.instances = null;
+		header.nInstances = getNumberOfInstances();
+		header.id = id;
+		return header;
+	}
+	
+	public long getID() {
+		return id;
+	}
+	
+	public void setID(long id) {
+		this.id = id;
 	}
 	
 	public synchronized void addInstanceUID(String sopInstanceUID) {
-		instanceTable.add(sopInstanceUID);
+		if (instances == null) instances = new InstanceSet();
+		instances.add(sopInstanceUID);
+	}
+	
+	public synchronized void setInstances(InstanceSet instances) {
+		this.instances = instances;
+	}
+	
+	public String getStudyInstanceUID() {
+		return studyInstanceUID;
+	}
+	
+	public String getStudyDate() {
+		return studyDate;
+	}
+	
+	public String getModality() {
+		return modality;
 	}
 	
 	public synchronized String[] getInstanceUIDs() {
-		return instanceTable.toArray(new String[instanceTable.size()]);
+		if (instances != null) return instances.toArray();
+		if (instanceTable != null) return instanceTable.toArray(new String[instanceTable.size()]);
+		return new String[0];
 	}
 	
 	public synchronized int getNumberOfInstances() {
-		return instanceTable.size();
+		if (instances != null) return instances.size();
+		if (instanceTable != null) return instanceTable.size();
+		return nInstances;
+	}
+	
+	public synchronized void setNumberOfInstances(int nInstances) {
+		this.nInstances = nInstances;
 	}
 	
 	public int compareTo(Study s) {
@@ -39,9 +97,16 @@ public class Study implements Comparable<Study>, Serializable {
 		s.setAttribute("studyInstanceUID", studyInstanceUID);
 		s.setAttribute("studyDate", studyDate);
 		s.setAttribute("modality", modality);
-		s.setAttribute("nImages", Integer.toString(instanceTable.size()));
+		s.setAttribute("nImages", Integer.toString(getNumberOfInstances()));
 		parent.appendChild(s);
 	}
+	
+	public synchronized void appendTo(StringBuilder sb) {
+		sb.append("{\"studyInstanceUID\":"+Patient.quote(studyInstanceUID));
+		sb.append(",\"studyDate\":"+Patient.quote(studyDate));
+		sb.append(",\"modality\":"+Patient.quote(modality));
+		sb.append(",\"nImages\":"+getNumberOfInstances());
+		sb.append("}");
+	}
 
 }
-
@@ -2,8 +2,11 @@ package org.rsna.ctp.stdstages.buffer;
 
 import java.io.Serializable;
 import java.io.File;
+import java.util.Collection;
+import java.util.TreeSet;
 
 public class Tracker implements Serializable {
+	static final long serialVersionUID = -970622253582465059L;
 	public long fileID;
 	public File baseDir;
 	
@@ -13,29 +16,61 @@ public class Tracker implements Serializable {
 	}
 	
 	public synchronized File getNextFile() {
+		return getFile(fileID++);
+	}
+	
+	public synchronized long getNextFileID() {
+		return fileID++;
+	}
+	
+	public File getFile(long id) {
 		String path = String.format("%02X/%02X/%02X/%02X.dcm",
-							(fileID >> 24) & 0xFF,
-							(fileID >> 16) & 0xFF,
-							(fileID >> 8) & 0xFF,
-							 fileID & 0xFF);
-		fileID++;
+							(id >> 24) & 0xFF,
+							(id >> 16) & 0xFF,
+							(id >> 8) & 0xFF,
+							 id & 0xFF);
 		return new File(baseDir, path);
 	}
 	
-	public synchronized void purge() {
-		for (File f : baseDir.listFiles()) {
-			purge(f);
+	public long getFileID(File file) {
+		try {
+			String name = file.getName();
+			if (!name.endsWith(".dcm")) return -1;
+			long id = Long.parseLong(name.substring(0, name.length() - 4), 16);
+			for (int shift=8; shift<32; shift+=8) {
+				file = file.getParentFile();
+				id |= Long.parseLong(file.getName(), 16) << shift;
+			}
+			return id;
 		}
+		catch (Exception notInLayout) { return -1; }
 	}
 	
-	private void purge(File dir) {
-		for (File file : dir.listFiles()) {
-			if (file.isDirectory()) {
-				purge(file);
+	/**
+	 * Remove the directories emptied by the deletion of stored files,
+	 * walking upward toward the base directory. Only the directories
+	 * of the deleted files and their ancestors are examined, and a
+	 * directory is kept if it can still receive files because its
+	 * range of slots extends to the first active slot.
+	 * @param ids the slot IDs of the deleted files.
+	 * @param firstActive the lowest slot that is allocated or may
+	 * yet be allocated.
+	 */
+	public void prune(Collection<Long> ids, long firstActive) {
+		TreeSet<Long> dirs = new TreeSet<Long>();
+		for (Long id : ids) dirs.add(id >>> 8);
+		for (int bits=8; (bits<=24) && !dirs.isEmpty(); bits+=8) {
+			TreeSet<Long> parents = new TreeSet<Long>();
+			for (Long prefix : dirs) {
+				long last = ((prefix + 1) << bits) - 1;
+				if (last >= firstActive) continue;
+				File dir = getFile(prefix << bits);
+				for (int i=0; i<bits; i+=8) dir = dir.getParentFile();
+				//delete() fails if the directory is not empty
+				if (dir.delete()) parents.add(prefix >>> 8);
 			}
+			dirs = parents;
 		}
-		if (dir.listFiles().length == 0) dir.delete();
 	}
-			
-}
 	
+}
@@ -5,47 +5,153 @@ function setSizes() {
 	var dtH = (bodyPos.h - dtPos.y);
 	dtObj.style.height = dtH;
 }
-window.onload = setSizes;
+window.onload = function() { setSizes(); loadPage(); }
 window.onresize = setSizes;
 
-var lastClicked = 0;
-var selectAllCB = 3;
-var firstPtCB = 4;
+var pageSize = 100;
+var cursor = null;
+var loading = false;
+var done = false;
+var rowCount = 0;
+var lastClicked = -1;
+
+//Clear the table and load the first page for the current filters.
+function reload() {
+	var tbody = document.getElementById("patients");
+	while (tbody.firstChild) tbody.removeChild(tbody.firstChild);
+	document.getElementById("selectAllCB").checked = false;
+	cursor = null;
+	done = false;
+	rowCount = 0;
+	lastClicked = -1;
+	count();
+	loadPage();
+}
+
+function getQuery() {
+	var qs = "?list=json&limit=" + pageSize;
+	qs += "&status=" + document.getElementById("statusFilter").value;
+	qs += "&order=" + document.getElementById("orderFilter").value;
+	var prefix = document.getElementById("prefixFilter").value.trim();
+	if (prefix != "") qs += "&prefix=" + encodeURIComponent(prefix);
+	var from = document.getElementById("fromFilter").value;
+	if (from != "") qs += "&from=" + new Date(from + "T00:00:00").getTime();
+	var to = document.getElementById("toFilter").value;
+	if (to != "") qs += "&to=" + (new Date(to + "T00:00:00").getTime() + 86400000 - 1);
+	if (cursor != null) qs += "&cursor=" + encodeURIComponent(cursor);
+	return qs;
+}
+
+//Load the next page of patients and append it to the table.
+function loadPage() {
+	if (loading || done) return;
+	loading = true;
+	var req = new XMLHttpRequest();
+	req.open("GET", getQuery(), true);
+	req.onreadystatechange = function() {
+		if (req.readyState != 4) return;
+		loading = false;
+		if (req.status != 200) {
+			setMessage("Unable to load the patient list.");
+			return;
+		}
+		var page = JSON.parse(req.responseText);
+		for (var i=0; i<page.patients.length; i++) appendPatient(page.patients[i]);
+		cursor = page.cursor;
+		done = (cursor == null);
+		document.getElementById("moreButton").style.display = done ? "none" : "inline";
+		setMessage((done && (rowCount == 0)) ? "There are no matching patients in the buffer." : "");
+		checkScroll();
+	}
+	req.send(null);
+}
+
+//Load another page when the table is scrolled near its end,
+//or when it does not yet fill the visible area.
+function checkScroll() {
+	var dt = document.getElementById("datatable");
+	if (dt.scrollTop + dt.clientHeight >= dt.scrollHeight - 200) loadPage();
+}
+
+function setMessage(text) {
+	document.getElementById("message").innerHTML = (text == "") ? "&#160;" : text;
+}
+
+function appendPatient(pt) {
+	var tbody = document.getElementById("patients");
+	var nImages = 0;
+	for (var i=0; i<pt.studies.length; i++) nImages += pt.studies[i].nImages;
+
+	var tr = document.createElement("TR");
+	var td = document.createElement("TD");
+	td.className = "center";
+	var cb = document.createElement("INPUT");
+	cb.type = "checkbox";
+	cb.className = "pt";
+	cb.id = rowCount++;
+	cb.name = pt.patientID + ":" + pt.studies.length + ":" + nImages;
+	cb.onclick = selectRange;
+	td.appendChild(cb);
+	tr.appendChild(td);
+	tr.appendChild(cell("data", pt.patientID));
+	tr.appendChild(cell("data", pt.lastModifiedTime));
+	tbody.appendChild(tr);
+
+	for (var i=0; i<pt.studies.length; i++) {
+		var st = pt.studies[i];
+		tr = document.createElement("TR");
+		tr.appendChild(cell("", ""));
+		tr.appendChild(cell("", ""));
+		tr.appendChild(cell("", ""));
+		tr.appendChild(cell("data", st.modality));
+		tr.appendChild(cell("data", st.studyDate));
+		tr.appendChild(cell("right", st.nImages));
+		tbody.appendChild(tr);
+	}
+}
+
+function cell(className, text) {
+	var td = document.createElement("TD");
+	if (className != "") td.className = className;
+	td.appendChild(document.createTextNode(text));
+	return td;
+}
+
+function getCheckboxes() {
+	return document.getElementsByClassName("pt");
+}
 
 function selectAll(event) {
-	var x = document.getElementsByTagName("input");
-	var sel = x[selectAllCB].checked;
-	for (var i=firstPtCB; i<x.length; i++) x[i].checked = sel;
+	var x = getCheckboxes();
+	var sel = document.getElementById("selectAllCB").checked;
+	for (var i=0; i<x.length; i++) x[i].checked = sel;
 	count();
 }
 
 function selectRange(event) {
-	var currentClicked = parseInt(event.target.id) + firstPtCB - 1;
-	if (event.shiftKey && (lastClicked >= firstPtCB)) {
-		var x = document.getElementsByTagName("input");
+	var currentClicked = parseInt(event.target.id);
+	if (event.shiftKey && (lastClicked >= 0)) {
+		var x = getCheckboxes();
 		var sel = x[lastClicked].checked;
-		if (currentClicked > lastClicked) {
-			for (var i=lastClicked; i<=currentClicked; i++) x[i].checked = sel;
-		}
-		else if (currentClicked < lastClicked) {
-			for (var i=currentClicked; i<=lastClicked; i++) x[i].checked = sel;
-		}
+		var from = Math.min(currentClicked, lastClicked);
+		var to = Math.max(currentClicked, lastClicked);
+		for (var i=from; i<=to; i++) x[i].checked = sel;
 	}
 	lastClicked = currentClicked;
 	count();
 }
 
 function count() {
-	var x = document.getElementsByTagName("input");
+	var x = getCheckboxes();
 	var ptCount = 0;
 	var stCount = 0;
 	var imCount = 0;
-	for (var i=firstPtCB; i<x.length; i++) {
+	for (var i=0; i<x.length; i++) {
 		if (x[i].checked) {
 			var text = x[i].name.split(":");
 			ptCount++;
-			stCount += parseInt(text[1]);
-			imCount += parseInt(text[2]);
+			stCount += parseInt(text[text.length-2]);
+			imCount += parseInt(text[text.length-1]);
 		}
 	}
 	document.getElementById('nptCell').innerHTML = ptCount;
@@ -53,29 +159,57 @@ function count() {
 	document.getElementById('nimCell').innerHTML = imCount;
 }
 
+function getPatientID(cb) {
+	var text = cb.name.split(":");
+	return text.slice(0, text.length-2).join(":");
+}
+
 function exportImages(event) {
-	var x = document.getElementsByTagName("input");
+	var x = getCheckboxes();
 	var qs = "?export=";
 	var first = true;
 	var count = 0;
-	for (var i=firstPtCB; i<x.length; i++) {
+	for (var i=0; i<x.length; i++) {
 		if (x[i].checked) {
 			count++;
-			if (!first) qs += "|";
-			qs += x[i].name.split(":")[0];
+			if (!first) qs += encodeURIComponent("|");
+			qs += encodeURIComponent(getPatientID(x[i]));
 			first = false;
 		}
 	}
 	if (count != 0) {
 		var text = document.getElementById("commentCell").value;
 		if ((text != null) && !((text=text.trim()) === "")) {
-			window.open(qs + "&comment="+text, "_self");
+			getJSON(qs + "&comment="+encodeURIComponent(text), showJob);
 		}
 		else alert("A comment is required");
 	}
 	else alert("Nothing was selected");
 }
 
+function getJSON(url, callback) {
+	var req = new XMLHttpRequest();
+	req.open("GET", url, true);
+	req.onreadystatechange = function() {
+		if (req.readyState != 4) return;
+		if (req.status == 200) callback(JSON.parse(req.responseText));
+		else document.getElementById("jobStatus").innerHTML = "The request failed (" + req.status + ").";
+	}
+	req.send(null);
+}
+
+//Display the progress of an export job, polling until it is done.
+function showJob(job) {
+	var text = "Export job " + job.job + ": " + job.state
+				+ " (" + job.queued + " of " + job.patients + " patients queued";
+	if (job.failed > 0) text += ", " + job.failed + " failed";
+	document.getElementById("jobStatus").innerHTML = text + ")";
+	if (job.state != "done") {
+		setTimeout(function() { getJSON("?job=" + job.job, showJob); }, 2000);
+	}
+	else reload();
+}
+
 function resetFailures(event) {
 	var qs = "?reset=yes";
 	window.open(qs, "_self");
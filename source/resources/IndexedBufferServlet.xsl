@@ -52,53 +52,59 @@
 						</td>
 					</tr>
 				</table>
-				<br/>
+				<table class="summary">
+					<tr>
+						<td class="datarow">Status</td>
+						<td class="datarow">
+							<select id="statusFilter" onchange="reload()">
+								<option value="none" selected="">Unqueued</option>
+								<option value="pending">Queued</option>
+								<option value="failed">Failed</option>
+							</select>
+						</td>
+						<td class="datarow">PatientID prefix</td>
+						<td class="datarow"><input type="text" id="prefixFilter" onchange="reload()"/></td>
+					</tr>
+					<tr>
+						<td class="datarow">Modified from</td>
+						<td class="datarow"><input type="date" id="fromFilter" onchange="reload()"/></td>
+						<td class="datarow">Modified to</td>
+						<td class="datarow"><input type="date" id="toFilter" onchange="reload()"/></td>
+					</tr>
+					<tr>
+						<td class="datarow">Order</td>
+						<td class="datarow">
+							<select id="orderFilter" onchange="reload()">
+								<option value="asc" selected="">PatientID ascending</option>
+								<option value="desc">PatientID descending</option>
+							</select>
+						</td>
+						<td/><td/>
+					</tr>
+				</table>
+				<p id="jobStatus" style="text-align: center;">&#160;</p>
 			</div>
-			<div class="scroll" id="datatable">
+			<div class="scroll" id="datatable" onscroll="checkScroll()">
 			<center>
-				<xsl:choose>
-					<xsl:when test="Patient">
-						<table>
-							<tr>
-								<th><input type="checkbox" onclick="selectAll(event)"/></th>
-								<th>PatientID</th>
-								<th>LastModified</th>
-								<th>Modality</th>
-								<th>StudyDate</th>
-								<th>NImages</th>
-							</tr>
-							<xsl:apply-templates select="Patient"/>
-						</table>
-					</xsl:when>
-					<xsl:otherwise>
-						<h2>There are no unqueued patients in the buffer.</h2>
-					</xsl:otherwise>
-				</xsl:choose>
+				<table>
+					<thead>
+						<tr>
+							<th><input type="checkbox" id="selectAllCB" onclick="selectAll(event)"/></th>
+							<th>PatientID</th>
+							<th>LastModified</th>
+							<th>Modality</th>
+							<th>StudyDate</th>
+							<th>NImages</th>
+						</tr>
+					</thead>
+					<tbody id="patients"/>
+				</table>
+				<h2 id="message">&#160;</h2>
+				<input class="export" type="button" id="moreButton" value="Load More" onclick="loadPage()"/>
 			</center>
 			</div>
 		</body>
 	</html>
 </xsl:template>
 
-<xsl:template match="Patient">
-	<tr>
-		<td class="center">
-			<input type="checkbox" onclick="selectRange(event)" id="{position()}" 
-				name="{@patientID}:{count(Study)}:{sum(Study/@nImages)}"/>
-		</td>
-		<td class="data"><xsl:value-of select="@patientID"/></td>
-		<td class="data"><xsl:value-of select="@lastModifiedTime"/></td>
-	</tr>
-	<xsl:apply-templates select="Study"/>
-</xsl:template>
-
-<xsl:template match="Study">
-	<tr>
-		<td/><td/><td/>
-		<td class="data"><xsl:value-of select="@modality"/></td>
-		<td class="data"><xsl:value-of select="@studyDate"/></td>
-		<td class="right"><xsl:value-of select="@nImages"/></td>
-	</tr>
-</xsl:template>
-
 </xsl:stylesheet>